@@ -0,0 +1,154 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+
+/**
+ * ArchiveJob writes a snapshot to a file on a background thread, so ARCHIVE
+ * ... ASYNC returns straight away.
+ * The job takes the snapshot's entries when it is created. Snapshots are
+ * never changed in place, so the writer can read them while commands keep
+ * running; a later PURGE doesn't change what is archived.
+ * The file is written under a temporary name next to the target and renamed
+ * over it once complete, so the target only ever holds a whole archive.
+ * Progress is written by the worker and read by ARCHIVE STATUS, so the
+ * counters are volatile and only the worker changes them.
+ */
+
+public class ArchiveJob implements Runnable {
+	private static final int QUEUED = 0;
+	private static final int RUNNING = 1;
+	private static final int DONE = 2;
+	private static final int FAILED = 3;
+
+	private final int id;
+	private final Snapshot snapshot; //Holds the entries as they were when the job was created
+	private final String filename;
+	private final boolean binary;
+	private final Path temporary;
+
+	private volatile int state = QUEUED;
+	private volatile int archived; //Entries written so far
+	private volatile long started; //System.nanoTime() when writing started
+	private volatile long finished; //System.nanoTime() when writing ended
+	private volatile long bytes; //Size of the archive once done
+	private boolean released; //The database has let go of the snapshot - NB only touched by commands holding every lock
+
+	public ArchiveJob(int id, Snapshot snapshot, String filename, boolean binary) {
+		//Constructor method
+		//@param id the job id shown to the user
+		//@param snapshot the snapshot to archive
+		//@param filename the file to write
+		//@param binary true for the binary format
+
+		this.id = id;
+		this.snapshot = new Snapshot(snapshot.getId(), snapshot.rollback());
+		this.filename = filename;
+		this.binary = binary;
+		Path target = Paths.get(filename);
+		this.temporary = target.resolveSibling(target.getFileName() + ".tmp");
+	}
+
+	public int getId() {
+		//Getter method for id
+		//@return the job id
+
+		return id;
+	}
+
+	public int getSnapshotId() {
+		//Getter method for the snapshot's id
+		//@return the id of the snapshot being archived
+
+		return snapshot.getId();
+	}
+
+	public void run() {
+		//Writes the archive to the temporary file and renames it over the target
+
+		started = System.nanoTime();
+		state = RUNNING;
+
+		boolean written = binary ? snapshot.archiveBinary(temporary.toString(), this) : snapshot.archive(temporary.toString(), this);
+
+		int outcome = FAILED;
+		try{
+			if(written){
+				bytes = Files.size(temporary);
+				Files.move(temporary, Paths.get(filename), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				outcome = DONE;
+			}
+		} catch(IOException e){
+			outcome = FAILED;
+		}
+
+		if(outcome == FAILED){
+			try{
+				Files.deleteIfExists(temporary);
+			} catch(IOException e){
+				//Nothing more we can do - the target was never touched
+			}
+		}
+
+		//NB state is set last so a reader that sees it finished also sees the rest
+		finished = System.nanoTime();
+		state = outcome;
+	}
+
+	public void written() {
+		//Counts one more entry written - called by the snapshot as it writes
+
+		archived++;
+	}
+
+	public boolean isFinished() {
+		//Checks whether the worker is done with the job, either way
+		//@return true if it is done or failed
+
+		return state >= DONE;
+	}
+
+	public boolean release() {
+		//Lets go of the snapshot once the job is finished - called before each command that holds every lock
+		//@return true the first time it is released
+
+		if(released || !isFinished()){
+			return false;
+		}
+
+		released = true;
+		return true;
+	}
+
+	public String status() {
+		//Describes the job for ARCHIVE STATUS
+		//@return e.g. "1 snapshot 2 to a.txt: running, 500/1000 entries, 1.2 MB at 30.5 MB/s"
+
+		int now = state;
+		String line = id + " snapshot " + snapshot.getId() + " to " + filename + ": ";
+
+		if(now == FAILED){
+			return line + "failed, file not found";
+		} else if(now == QUEUED){
+			return line + "queued, 0/" + snapshot.size() + " entries";
+		}
+
+		long size = bytes;
+		long end = finished;
+		if(now == RUNNING){
+			try{
+				size = Files.size(temporary);
+			} catch(IOException e){
+				size = 0; //Not created yet
+			}
+			end = System.nanoTime();
+		}
+
+		double seconds = Math.max(end - started, 1) / 1e9;
+		double megabytes = size / (1024.0*1024.0);
+		return line + (now == DONE ? "done" : "running") + ", " + archived + "/" + snapshot.size() + " entries, "
+			+ String.format(Locale.ROOT, "%.1f MB at %.1f MB/s", megabytes, megabytes/seconds);
+	}
+}
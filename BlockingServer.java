@@ -0,0 +1,308 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BlockingServer serves local clients over TCP with one thread per
+ * connection, each reading lines and running them straight through its own
+ * Session, so commands from different clients run at the same time on the
+ * key locks of the database. It speaks the same line protocol as Server.
+ * Where the JVM has virtual threads (Java 21 and later) every connection
+ * gets one, so tens of thousands of mostly idle clients cost little more
+ * than their buffers. Otherwise connections run on a cached pool of platform
+ * threads with small stacks.
+ * A connection that has been idle for IDLE_MS lets go of its buffers.
+ * Responses are written with blocking writes a buffer at a time, so a client
+ * that reads slowly holds back its own commands rather than filling the heap,
+ * even for streamed replies like LIST ENTRIES or CARTPROD. A command holds
+ * its key locks while its reply is written, so once the writes of one reply
+ * have been blocked for REPLY_TIMEOUT_MS in all the client is disconnected to
+ * free them - a client that reads slowly but steadily is cut off too, not
+ * just one that stops. Outside a command nothing is locked, and a client is
+ * only disconnected when one write has been blocked for WRITE_TIMEOUT_MS.
+ */
+
+public class BlockingServer {
+	private static final int READ_SIZE = 1 << 10; //Starting size of a read buffer - NB grows for longer lines
+	private static final int IDLE_MS = 1000; //A connection with nothing to read for this long trims its buffers
+	private static final long WRITE_TIMEOUT_MS = 30000; //Disconnect a client whose socket takes no output for this long
+	private static final long REPLY_TIMEOUT_MS = 5000; //Disconnect a client once a command holding locks has waited this long in all for it to read
+	private static final long WATCHDOG_MS = 250;
+	private static final long THREAD_STACK = 1 << 18; //Stack size of platform threads when there are no virtual threads
+
+	private final CrunchDB db;
+	private final CommandRegistry commands;
+	private final CommandLog log; //NB null if changes aren't logged
+	private final Set<Connection> connections;
+
+	public BlockingServer(CrunchDB db, CommandRegistry commands, CommandLog log) {
+		//Constructor method
+		//@param db the database the clients share
+		//@param commands the commands that can be run
+		//@param log the command log - NB null if changes aren't logged
+
+		this.db = db;
+		this.commands = commands;
+		this.log = log;
+		this.connections = ConcurrentHashMap.newKeySet();
+	}
+
+	public void run(int port) throws IOException {
+		//Accepts clients on the loopback address and runs each on its own thread until the process is stopped
+		//@param port the port to listen on - NB 0 picks a free one
+
+		ServerSocket listener = new ServerSocket();
+		listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1 << 12);
+
+		ExecutorService threads = threadPerConnection();
+
+		ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "write watchdog");
+			thread.setDaemon(true);
+			return thread;
+		});
+		watchdog.scheduleWithFixedDelay(this::disconnectStalled, WATCHDOG_MS, WATCHDOG_MS, TimeUnit.MILLISECONDS);
+
+		System.err.println("listening on " + listener.getLocalSocketAddress());
+
+		while(true){
+			Socket socket = listener.accept();
+			Connection connection = new Connection(socket);
+			connections.add(connection);
+			threads.execute(connection);
+		}
+	}
+
+	private static ExecutorService threadPerConnection() {
+		//Makes the executor that gives each connection a thread - NB looked up by name so this still compiles and runs on Java 17
+		//@return virtual threads if the JVM has them, else a cached pool of small platform threads
+
+		try{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch(ReflectiveOperationException | RuntimeException e){
+			//Older JVM, or virtual threads are a preview that isn't enabled
+			return Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(null, runnable, "client", THREAD_STACK);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	private void disconnectStalled() {
+		//Closes connections whose socket has been blocked taking output for too long, so the command writing to it fails and lets go of its locks
+		//A running command's earlier waits count too, so its reply has to keep up rather than just move
+
+		long now = System.nanoTime();
+		for(Connection next: connections){
+			long started = next.writeStarted;
+			if(started == 0){
+				continue;
+			}
+
+			long blocked = now - started;
+			if(next.running ? next.waited + blocked > TimeUnit.MILLISECONDS.toNanos(REPLY_TIMEOUT_MS) : blocked > TimeUnit.MILLISECONDS.toNanos(WRITE_TIMEOUT_MS)){
+				next.close();
+			}
+		}
+	}
+
+	private class Connection implements Runnable {
+		//One client: a socket, a session and the thread reading from it
+
+		private final Socket socket;
+		private volatile long writeStarted; //System.nanoTime() when a write to the socket started blocking - NB 0 while not writing
+		private volatile long waited; //ns the running command's earlier writes were blocked
+		private volatile boolean running; //A command is running, so it may hold key locks
+		private byte[] input; //Bytes received - NB [0, length) not yet run
+		private int length;
+		private boolean skipNewLine; //The last line ended with \r, so a \n straight after belongs to it
+		private boolean closing; //BYE was run, so no more lines are run
+		private long lines; //Lines run so far
+
+		private Connection(Socket socket) {
+			//Constructor method
+			//@param socket the client's socket
+
+			this.socket = socket;
+			this.input = new byte[READ_SIZE];
+		}
+
+		public void run() {
+			//Serves the client until it goes away or runs BYE
+
+			try{
+				serve();
+			} catch(IOException e){
+				//The client went away - NB its session is dropped, the database carries on
+			} finally {
+				close();
+				connections.remove(this);
+			}
+		}
+
+		private void serve() throws IOException {
+			//Reads lines and runs them, writing responses whenever everything sent so far has been run
+
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(IDLE_MS);
+			InputStream in = socket.getInputStream();
+			ResponseWriter out = new ResponseWriter(new SocketWriter(socket.getOutputStream()), false);
+			Session session = new Session(db, commands, out);
+			if(log != null){
+				session.setLog(log);
+				out.setBeforeWrite(log::commit);
+			}
+
+			while(!closing){
+				//Pipelined lines are run back to back and their responses sent together
+				if(in.available() == 0){
+					out.flush();
+					if(out.checkError()) return;
+				}
+
+				if(length == input.length){
+					//A line longer than the buffer
+					byte[] bigger = new byte[input.length*2];
+					System.arraycopy(input, 0, bigger, 0, length);
+					input = bigger;
+				}
+
+				int read;
+				try{
+					read = in.read(input, length, input.length-length);
+				} catch(SocketTimeoutException e){
+					//Idle - keep only what a connection waiting for its next line needs
+					out.trim();
+					if(length == 0 && input.length > READ_SIZE) input = new byte[READ_SIZE];
+					continue;
+				}
+
+				if(read < 0){
+					//Like readLine, a last line without a new line still counts
+					if(length > 0) execute(session, out, 0, length);
+					out.flush();
+					return;
+				}
+
+				runLines(session, out, length, length+read);
+			}
+
+			out.flush();
+		}
+
+		private void runLines(Session session, ResponseWriter out, int from, int end) {
+			//Runs the complete lines in the input buffer and keeps the rest at the front of it
+			//@param from index of the first byte not yet looked at
+			//@param end index after the last byte received
+
+			int start = 0;
+			for(int i = from; i < end && !closing; i++){
+				byte next = input[i];
+				if(skipNewLine){
+					skipNewLine = false;
+					if(next == '\n'){
+						start = i+1;
+						continue;
+					}
+				}
+
+				if(next == '\n' || next == '\r'){
+					skipNewLine = next == '\r';
+					execute(session, out, start, i);
+					start = i+1;
+				}
+			}
+
+			length = end-start;
+			System.arraycopy(input, start, input, 0, length);
+		}
+
+		private void execute(Session session, ResponseWriter out, int start, int end) {
+			//Runs one line, prompt first like the console
+			//@param start index of its first byte in the input buffer
+			//@param end index after its last byte
+
+			String line = new String(input, start, end-start, StandardCharsets.UTF_8);
+
+			out.startCommand(++lines);
+			out.print("> ");
+			waited = 0;
+			running = true;
+			if(!session.execute(line)){
+				closing = true;
+			}
+			running = false;
+			out.endCommand();
+		}
+
+		private void close() {
+			//Closes the socket - NB from any thread, a write blocked on it fails straight away
+
+			try{
+				socket.close();
+			} catch(IOException e){
+				//Already gone
+			}
+		}
+
+		private class SocketWriter extends Writer {
+			//Encodes responses as UTF-8 straight onto the socket, noting when a write blocks
+
+			private final OutputStream socketOut;
+			private char held; //A high surrogate at the end of the last write, whose pair comes next - NB 0 if none
+
+			private SocketWriter(OutputStream socketOut) {
+				//Constructor method
+				//@param socketOut the socket's output stream
+
+				this.socketOut = socketOut;
+			}
+
+			public void write(char[] chars, int offset, int count) throws IOException {
+				//Sends characters, blocking until the socket has taken them all
+
+				if(count == 0){
+					return;
+				}
+
+				String text = held != 0 ? held + new String(chars, offset, count) : new String(chars, offset, count);
+				held = 0;
+				if(Character.isHighSurrogate(text.charAt(text.length()-1))){
+					held = text.charAt(text.length()-1);
+					text = text.substring(0, text.length()-1);
+				}
+
+				long started = System.nanoTime();
+				writeStarted = started;
+				try{
+					socketOut.write(text.getBytes(StandardCharsets.UTF_8));
+				} finally {
+					writeStarted = 0;
+					if(running) waited += System.nanoTime() - started;
+				}
+			}
+
+			public void flush() throws IOException {
+				socketOut.flush();
+			}
+
+			public void close() throws IOException {
+				socketOut.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,499 @@
+import java.util.List;
+import java.util.ArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Command is one form of a CrunchDB command: the verb, the arguments it takes
+ * and the handler that runs it.
+ * The arguments are declared with the same usage syntax HELP shows, e.g.
+ * "PICK <key> <index>" or "SET <key> AS BITMAP|LIST [<value ...>]", and a
+ * line is checked against them before the handler runs, so handlers read
+ * keys and integers without parsing or catching anything.
+ */
+
+public class Command {
+	private static final Pattern USAGE_TOKEN = Pattern.compile("\\[<[^>]*>\\]|<[^>]*>|\\S+");
+
+	//What each argument in a usage may be
+	private static final int KEY = 0; //The key of an entry - may be any token
+	private static final int INT = 1; //A token Integer.parseInt accepts
+	private static final int WORD = 2; //One of the given words, ignoring case
+	private static final int TEXT = 3; //Any other token, e.g. a file name
+	private static final int LONG = 4; //A token Long.parseLong accepts, e.g. a time in ms
+
+	//How a command is recorded in the command log
+	private static final int NOT_LOGGED = 0; //Doesn't change the database
+	private static final int LOGGED = 1; //Its line is appended to the log
+	private static final int REWRITES_LOG = 2; //Replaces the database from outside, so the log is rewritten from the new state
+
+	public interface Handler {
+		//Runs the command once its arguments are valid
+		//@param db the database
+		//@param args the arguments after the verb
+		//@param out where the response is written
+
+		void run(CrunchDB db, Arguments args, ResponseWriter out);
+	}
+
+	public interface LogFormat {
+		//Writes the log record for a command whose line can't be replayed as typed, e.g. one relative to the time
+		//Called just before the command runs
+		//@param db the database
+		//@param args the arguments
+		//@param now the time the command runs at, in ms
+		//@return the line to log - NB null if the command won't change anything and isn't logged
+
+		String line(CrunchDB db, Arguments args, long now);
+	}
+
+	private final String verb;
+	private final String name; //The verb and any words straight after it, e.g. "LIST KEYS" - NB forms of a command share it
+	private final int[] types; //Type of each fixed argument
+	private final String[][] words; //Allowed words for each WORD argument
+	private final int restType; //Type of the repeated argument at the end - NB -1 if there isn't one
+	private final int restMinimum; //How many times the repeated argument must appear at least
+	private final Handler handler;
+	private boolean exits; //True if the session ends after this command
+	private boolean exclusive; //True if the command runs with every key locked - NB so by default if it names no keys
+	private int logging = NOT_LOGGED;
+	private LogFormat logFormat; //NB null to log the line as typed
+	private LatencyStats stats; //Shared by every form with the same name - NB set by the registry
+	private boolean timed = true; //False to leave the command out of INFO STATS
+
+	public Command(String usage, Handler handler) {
+		//Constructor method
+		//@param usage the verb followed by its arguments - <name> is one argument, <name ...> one or more,
+		//[<name ...>] zero or more, and bare words (WORD or WORD|OTHER) must be typed as is
+		//@param handler what runs the command
+
+		Matcher matcher = USAGE_TOKEN.matcher(usage);
+		List<String> parts = new ArrayList<String>();
+		while(matcher.find()){
+			parts.add(matcher.group());
+		}
+
+		this.verb = parts.get(0).toUpperCase();
+		StringBuilder name = new StringBuilder(verb);
+		for(int i = 1; i < parts.size() && !parts.get(i).startsWith("<") && !parts.get(i).startsWith("["); i++){
+			name.append(' ').append(parts.get(i).toUpperCase());
+		}
+		this.name = name.toString();
+		this.handler = handler;
+
+		int fixed = parts.size()-1;
+		int rest = -1;
+		int minimum = 0;
+		String last = parts.get(parts.size()-1);
+		if(parts.size() > 1 && (last.endsWith("...>") || last.endsWith("...>]"))){
+			rest = typeOf(last);
+			minimum = last.startsWith("[") ? 0 : 1;
+			fixed--;
+		}
+
+		this.types = new int[fixed];
+		this.words = new String[fixed][];
+		for(int i = 0; i < fixed; i++){
+			String part = parts.get(i+1);
+			if(part.startsWith("<")){
+				types[i] = typeOf(part);
+			} else {
+				types[i] = WORD;
+				words[i] = part.split("\\|");
+			}
+		}
+		this.restType = rest;
+		this.restMinimum = minimum;
+
+		//A command that names no keys may look at all of them
+		boolean namesKeys = rest == KEY;
+		for(int next: types){
+			if(next == KEY) namesKeys = true;
+		}
+		this.exclusive = !namesKeys;
+	}
+
+	private static int typeOf(String placeholder) {
+		//Works out what a placeholder holds from its name
+		//@param placeholder e.g. <key>, <index> or [<value ...>]
+		//@return KEY, INT, LONG or TEXT
+
+		String name = placeholder.replaceAll("[\\[\\]<>.]", "").trim();
+
+		if(name.equals("value") || name.equals("index") || name.equals("id")){
+			return INT;
+		} else if(name.equals("ms") || name.equals("timestamp")){
+			return LONG;
+		} else if(name.equals("key")){
+			return KEY;
+		}
+
+		return TEXT;
+	}
+
+	public String getVerb() {
+		//Getter method for verb
+		//@return the verb in upper case
+
+		return verb;
+	}
+
+	public String getName() {
+		//Getter method for name
+		//@return e.g. "LIST KEYS" or "SET"
+
+		return name;
+	}
+
+	public LatencyStats getStats() {
+		//Getter method for stats
+		//@return the statistics of this command and its other forms
+
+		return stats;
+	}
+
+	public void setStats(LatencyStats stats) {
+		//Setter method for stats
+		//@param stats the statistics to record calls in
+
+		this.stats = stats;
+	}
+
+	public Command untimed() {
+		//Leaves the command out of the statistics, e.g. INFO STATS, whose output would otherwise change by running it
+		//@return this command
+
+		this.timed = false;
+		return this;
+	}
+
+	public boolean isTimed() {
+		//Getter method for timed
+		//@return true if calls are recorded in the statistics
+
+		return timed;
+	}
+
+	public Command exits() {
+		//Marks the command as ending the session, e.g. BYE
+		//@return this command
+
+		this.exits = true;
+		return this;
+	}
+
+	public boolean isExit() {
+		//Getter method for exits
+		//@return true if the session ends after this command
+
+		return exits;
+	}
+
+	public Command exclusive() {
+		//Marks the command as running alone even though it names keys, e.g. PURGE changes every snapshot
+		//@return this command
+
+		this.exclusive = true;
+		return this;
+	}
+
+	public Command lockFree() {
+		//Marks the command as never touching the database, so it takes no locks at all, e.g. HELP
+		//@return this command
+
+		this.exclusive = false;
+		return this;
+	}
+
+	public boolean isExclusive() {
+		//Getter method for exclusive
+		//@return true if nothing else may run while the command does
+
+		return exclusive;
+	}
+
+	public Command logged() {
+		//Marks the command as changing the database, so it is recorded in the command log
+		//@return this command
+
+		this.logging = LOGGED;
+		return this;
+	}
+
+	public Command rewritesLog() {
+		//Marks the command as replacing the database with data replay can't see, e.g. RESTORE
+		//@return this command
+
+		this.logging = REWRITES_LOG;
+		return this;
+	}
+
+	public Command loggedAs(LogFormat format) {
+		//Marks the command as changing the database, logged as the line format gives rather than as typed
+		//@param format writes the record
+		//@return this command
+
+		this.logging = LOGGED;
+		this.logFormat = format;
+		return this;
+	}
+
+	public boolean isLogged() {
+		//Checks whether the command's line goes in the command log
+		//@return true if it is logged
+
+		return logging == LOGGED;
+	}
+
+	public boolean isLogRewrite() {
+		//Checks whether the command log is rewritten after this command
+		//@return true if it rewrites the log
+
+		return logging == REWRITES_LOG;
+	}
+
+	public String logLine(CrunchDB db, Arguments args, long now) {
+		//Writes the record for a logged command - NB call it just before the command runs
+		//@param db the database
+		//@param args the arguments
+		//@param now the time the command runs at, in ms
+		//@return the line to log - NB null if it isn't logged this time
+
+		return logFormat == null ? args.getLine() : logFormat.line(db, args, now);
+	}
+
+	public Arguments match(String[] tokens, int count) {
+		//Checks the tokens after the verb against the usage
+		//@param tokens the tokens of the line - NB tokens[0] is the verb
+		//@param count how many tokens are in use
+		//@return the parsed arguments - NB null if they don't fit
+
+		int given = count-1;
+		if(given < types.length){
+			return null;
+		}
+		if(restType == -1 ? given != types.length : given - types.length < restMinimum){
+			return null;
+		}
+
+		Arguments args = new Arguments(this, tokens, count);
+		for(int i = 0; i < given; i++){
+			int type = i < types.length ? types[i] : restType;
+			String token = tokens[i+1];
+
+			if(type == INT || type == LONG){
+				if(!args.parse(i, type == LONG)) return null;
+			} else if(type == WORD && !isOneOf(token, words[i])){
+				return null;
+			}
+		}
+
+		return args;
+	}
+
+	public void run(CrunchDB db, Arguments args, ResponseWriter out) {
+		//Runs the handler
+		//@param db the database
+		//@param args arguments returned by match
+		//@param out where the response is written
+
+		handler.run(db, args, out);
+	}
+
+	private static boolean isOneOf(String token, String[] allowed) {
+		//Checks a token against the words allowed in its place
+		//@return true if it is one of them, ignoring case
+
+		for(String next: allowed){
+			if(next.equalsIgnoreCase(token)) return true;
+		}
+
+		return false;
+	}
+
+	public static class Arguments {
+		//The arguments of a line that matched a usage, with integers already parsed
+
+		private final Command command;
+		private final String[] tokens;
+		private final int count;
+		private final long[] numbers;
+		private long time; //When the command runs, in ms - NB set by the session just before
+		private long sequence; //Where the command falls among those of every session - NB set by the session just before
+
+		private Arguments(Command command, String[] tokens, int count) {
+			//Constructor method
+			//@param command the command whose usage they matched
+			//@param tokens the tokens of the line - NB tokens[0] is the verb
+			//@param count how many tokens are in use
+
+			this.command = command;
+			this.tokens = tokens;
+			this.count = count;
+			this.numbers = new long[count-1];
+		}
+
+		public Command getCommand() {
+			//Getter method for command
+			//@return the command whose usage these arguments matched
+
+			return command;
+		}
+
+		public int size() {
+			//Counts the arguments
+			//@return the number of arguments after the verb
+
+			return count-1;
+		}
+
+		public String get(int index) {
+			//Finds an argument as typed
+			//@param index the argument - NB 0 is the first after the verb
+			//@return the argument
+
+			return tokens[index+1];
+		}
+
+		public int getInt(int index) {
+			//Finds an integer argument
+			//@param index the argument - NB declared as <value>, <index> or <id>
+			//@return the value
+
+			return (int) numbers[index];
+		}
+
+		public long getLong(int index) {
+			//Finds a long argument
+			//@param index the argument - NB declared as <ms> or <timestamp>
+			//@return the value
+
+			return numbers[index];
+		}
+
+		public long getTime() {
+			//Getter method for time
+			//@return when the command runs, in ms since the epoch - NB 0 while replaying the command log
+
+			return time;
+		}
+
+		public void setTime(long time) {
+			//Setter method for time
+			//@param time when the command runs, in ms since the epoch
+
+			this.time = time;
+		}
+
+		public long getSequence() {
+			//Getter method for sequence
+			//@return the command's number - NB a key it adds is listed after keys added by lower numbers
+
+			return sequence;
+		}
+
+		public void setSequence(long sequence) {
+			//Setter method for sequence
+			//@param sequence the command's number
+
+			this.sequence = sequence;
+		}
+
+		public List<String> getKeys() {
+			//Collects the arguments that name entries
+			//@return the keys as typed - NB empty if the command doesn't name any
+
+			List<String> keys = new ArrayList<String>(2);
+			for(int i = 0; i < count-1; i++){
+				int type = i < command.types.length ? command.types[i] : command.restType;
+				if(type == KEY) keys.add(tokens[i+1]);
+			}
+
+			return keys;
+		}
+
+		public List<Integer> getInts(int from) {
+			//Collects the integer arguments from an index to the end
+			//@param from the first argument
+			//@return the values
+
+			List<Integer> values = new ArrayList<Integer>(count-1-from);
+			for(int i = from; i < count-1; i++){
+				values.add((int) numbers[i]);
+			}
+
+			return values;
+		}
+
+		public String getLine() {
+			//Rebuilds the line these arguments came from
+			//@return the verb and arguments separated by single spaces - NB parses to the same arguments
+
+			StringBuilder line = new StringBuilder(tokens[0]);
+			for(int i = 1; i < count; i++){
+				line.append(' ').append(tokens[i]);
+			}
+
+			return line.toString();
+		}
+
+		public List<String> getAll(int from) {
+			//Collects the arguments from an index to the end
+			//@param from the first argument
+			//@return the arguments as typed
+
+			List<String> values = new ArrayList<String>(count-1-from);
+			for(int i = from; i < count-1; i++){
+				values.add(tokens[i+1]);
+			}
+
+			return values;
+		}
+
+		private boolean parse(int index, boolean wide) {
+			//Parses an argument the way Integer.parseInt or Long.parseLong does, but without throwing
+			//@param index the argument
+			//@param wide true to allow any long rather than only an int
+			//@return false if it isn't valid
+
+			String token = tokens[index+1];
+			int length = token.length();
+			if(length == 0){
+				return false;
+			}
+
+			int i = 0;
+			boolean negative = false;
+			char first = token.charAt(0);
+			if(first < '0'){
+				//Possible leading "+" or "-", which can't be the whole token
+				if(first == '-'){
+					negative = true;
+				} else if(first != '+'){
+					return false;
+				}
+				if(length == 1){
+					return false;
+				}
+				i++;
+			}
+
+			//Built up below zero like Long.parseLong, since the smallest value has no positive counterpart
+			long limit = wide ? (negative ? Long.MIN_VALUE : -Long.MAX_VALUE) : (negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE);
+			long value = 0;
+			for(; i < length; i++){
+				int digit = Character.digit(token.charAt(i), 10);
+				if(digit < 0){
+					return false;
+				}
+				if(value < limit/10 || value*10 < limit + digit){
+					return false;
+				}
+				value = value*10 - digit;
+			}
+
+			numbers[index] = negative ? value : -value;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,236 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CommandLog is an append-only log of the commands that change the database.
+ * It is replayed at startup to rebuild the entries and snapshots after a
+ * crash.
+ * Each record is the command line as typed plus a new line, so the log can
+ * be read with any text tool. A last line without its new line was torn by a
+ * crash and is dropped when the log is opened.
+ * Records are collected in memory and written to the file in groups. Every
+ * record is written before any response that follows it is shown. The sync
+ * policy decides when the file is forced to disk: after every group
+ * (SYNC_ALWAYS), every N ms from a background thread, or whenever the OS
+ * decides (SYNC_OS).
+ */
+
+public class CommandLog {
+	public static final long SYNC_ALWAYS = 0;
+	public static final long SYNC_OS = -1;
+
+	private static final int GROUP_LIMIT = 1 << 16; //Write the pending records once this many bytes are waiting
+
+	private final Path path;
+	private final long syncInterval; //SYNC_ALWAYS, SYNC_OS or a number of ms
+	private FileChannel channel;
+	private ByteBuffer pending; //Records not yet written to the file
+	private boolean unsynced; //Records have been written but not forced to disk
+	private boolean failed; //Writing has failed and we have already said so
+	private ScheduledExecutorService syncer;
+
+	public CommandLog(String filename, long syncInterval) throws IOException {
+		//Constructor method - opens or creates the log and drops a torn last record
+		//@param filename name of the log file
+		//@param syncInterval SYNC_ALWAYS, SYNC_OS or how many ms may pass between syncs
+
+		this.path = Paths.get(filename);
+		this.syncInterval = syncInterval;
+		this.pending = ByteBuffer.allocate(GROUP_LIMIT*2);
+		this.channel = open(path);
+
+		if(syncInterval > 0){
+			syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "command-log-sync");
+				thread.setDaemon(true);
+				return thread;
+			});
+			syncer.scheduleWithFixedDelay(this::sync, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static FileChannel open(Path path) throws IOException {
+		//Opens the log for appending, cutting it back to the end of the last complete record
+		//@param path the log file
+		//@return the channel positioned at the end
+
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		//Look back from the end a block at a time for the last new line
+		long end = channel.size();
+		ByteBuffer block = ByteBuffer.allocate(1 << 12);
+		boolean found = false;
+		while(end > 0 && !found){
+			long start = Math.max(0, end-block.capacity());
+			block.clear();
+			block.limit((int) (end-start));
+			while(block.hasRemaining() && channel.read(block, start+block.position()) >= 0);
+
+			for(int i = block.limit()-1; i >= 0 && !found; i--){
+				if(block.get(i) == '\n') found = true;
+				else end--;
+			}
+		}
+
+		if(end < channel.size()){
+			channel.truncate(end);
+		}
+		channel.position(end);
+
+		return channel;
+	}
+
+	public void replay(Session session) throws IOException {
+		//Runs every record in the log through the session - NB the session should not log and its output is thrown away
+		//@param session the session to replay into
+
+		BufferedReader reader = new BufferedReader(Channels.newReader(FileChannel.open(path, StandardOpenOption.READ), StandardCharsets.UTF_8.newDecoder(), 1 << 16));
+		try{
+			String nextLine;
+			while((nextLine = reader.readLine()) != null){
+				session.execute(nextLine);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	public synchronized void append(String line) {
+		//Adds a record - NB it reaches the file at the next commit or once enough records are waiting
+		//@param line the command line
+
+		byte[] record = line.getBytes(StandardCharsets.UTF_8);
+		if(pending.remaining() < record.length+1){
+			write();
+			if(pending.capacity() < record.length+1){
+				pending = ByteBuffer.allocate(Math.max(record.length+1, GROUP_LIMIT*2));
+			}
+		}
+
+		pending.put(record);
+		pending.put((byte) '\n');
+
+		if(pending.position() >= GROUP_LIMIT){
+			write();
+		}
+	}
+
+	public synchronized void commit() {
+		//Writes the waiting records as one group - called before a response is shown
+		//With SYNC_ALWAYS the group is also forced to disk, so a response is never seen before its commands are safe
+
+		write();
+		if(syncInterval == SYNC_ALWAYS){
+			force();
+		}
+	}
+
+	public synchronized void rewrite(CrunchDB db) {
+		//Replaces the log with the commands that rebuild the current state, e.g. after a RESTORE
+		//The new log is written to a temporary file and renamed over the old one so a crash leaves one or the other
+		//@param db the database
+
+		Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+
+		try{
+			Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(temporary), StandardCharsets.UTF_8), 1 << 16);
+			db.dump(writer);
+			writer.close();
+
+			FileChannel written = FileChannel.open(temporary, StandardOpenOption.WRITE);
+			written.force(true);
+			written.close();
+
+			//The old records are replaced, so anything still waiting is dropped with them
+			pending.clear();
+			channel.close();
+			Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			channel = open(path);
+			unsynced = false;
+		} catch(IOException e){
+			fail(e);
+		}
+	}
+
+	public synchronized void close() {
+		//Writes and syncs everything, then closes the log
+
+		if(syncer != null){
+			syncer.shutdownNow();
+		}
+
+		write();
+		force();
+		try{
+			channel.close();
+		} catch(IOException e){
+			fail(e);
+		}
+	}
+
+	private synchronized void sync() {
+		//Writes and forces everything waiting - run every syncInterval ms by the background thread
+
+		write();
+		force();
+	}
+
+	private void write() {
+		//Writes the pending records to the file
+
+		if(pending.position() == 0){
+			return;
+		}
+
+		pending.flip();
+		try{
+			while(pending.hasRemaining()){
+				channel.write(pending);
+			}
+			unsynced = true;
+		} catch(IOException e){
+			fail(e);
+		}
+		pending.clear();
+	}
+
+	private void force() {
+		//Forces written records to disk
+
+		if(!unsynced){
+			return;
+		}
+
+		try{
+			channel.force(false);
+			unsynced = false;
+		} catch(IOException e){
+			fail(e);
+		}
+	}
+
+	private void fail(IOException e) {
+		//Reports the first write failure - NB commands keep running but may not survive a crash
+		//@param e the failure
+
+		if(!failed){
+			System.err.println("command log " + path + " can't be written, changes may be lost: " + e.getMessage());
+			failed = true;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * CommandRegistry maps each verb to the forms of the command registered for
+ * it, so finding the handler for a line is one hash lookup however many
+ * commands there are.
+ * A line is split into tokens in one pass and matched against the forms of
+ * its verb in the order they were registered - the first one that fits wins.
+ */
+
+public class CommandRegistry {
+	public static final String USAGE_ERROR = "Incorrect usage, see HELP for command list";
+
+	private final Map<String, List<Command>> commands;
+	private final Map<String, LatencyStats> stats; //Keyed by command name, in the order registered
+
+	public CommandRegistry() {
+		//Constructor method
+
+		this.commands = new HashMap<String, List<Command>>();
+		this.stats = new LinkedHashMap<String, LatencyStats>();
+	}
+
+	public Command register(String usage, Command.Handler handler) {
+		//Adds a form of a command - NB forms of the same verb are tried in the order they are added
+		//@param usage the verb and its arguments, e.g. "PICK <key> <index>"
+		//@param handler what runs the command
+		//@return the command
+
+		Command command = new Command(usage, handler);
+
+		List<Command> forms = commands.get(command.getVerb());
+		if(forms == null){
+			forms = new ArrayList<Command>(1);
+			commands.put(command.getVerb(), forms);
+		}
+		forms.add(command);
+
+		LatencyStats shared = stats.get(command.getName());
+		if(shared == null){
+			shared = new LatencyStats();
+			stats.put(command.getName(), shared);
+		}
+		command.setStats(shared);
+
+		return command;
+	}
+
+	public Map<String, LatencyStats> getStats() {
+		//Getter method for stats
+		//@return the statistics of each command by name, in the order registered
+
+		return stats;
+	}
+
+	public Command.Arguments parse(String line) {
+		//Finds the command a line is for and checks its arguments
+		//@param line the line typed
+		//@return the arguments, which know their command - NB null if no form of the verb fits
+
+		String[] tokens = tokenize(line);
+		int count = tokens.length;
+
+		List<Command> forms = count == 0 ? null : commands.get(tokens[0].toUpperCase());
+		if(forms != null){
+			for(Command next: forms){
+				Command.Arguments args = next.match(tokens, count);
+				if(args != null){
+					return args;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	public static String[] tokenize(String line) {
+		//Splits a line on single spaces in one pass
+		//Like split(" "), two spaces in a row give an empty token and empty tokens at the end are dropped
+		//@param line the line typed
+		//@return the tokens
+
+		int end = line.length();
+		while(end > 0 && line.charAt(end-1) == ' '){
+			end--;
+		}
+		if(end == 0){
+			//Nothing but spaces
+			return line.length() == 0 ? new String[] {""} : new String[0];
+		}
+
+		int count = 1;
+		for(int i = 0; i < end; i++){
+			if(line.charAt(i) == ' ') count++;
+		}
+
+		String[] tokens = new String[count];
+		int start = 0;
+		for(int i = 0; i < count; i++){
+			int space = i == count-1 ? end : line.indexOf(' ', start);
+			tokens[i] = line.substring(start, space);
+			start = space+1;
+		}
+
+		return tokens;
+	}
+}
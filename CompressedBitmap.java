@@ -0,0 +1,769 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * CompressedBitmap stores a set of ints split into chunks of 65536 values,
+ * in the style of a Roaring bitmap.
+ * Each chunk keeps whichever of a sorted array, a plain bitmap or a list of
+ * runs is smallest, so sparse, dense and range-heavy sets all stay compact.
+ * Set operations work chunk against chunk without expanding the values.
+ */
+
+public class CompressedBitmap {
+	private static final int ARRAY_LIMIT = 4096; //Above this many values a 8KB bitmap is smaller than an array
+	private static final int WORDS = 1024; //65536 bits per chunk
+
+	//Chunks are keyed by the high 16 bits of the value with the sign bit flipped,
+	//so comparing keys as unsigned chars gives the same order as comparing the ints
+	private char[] keys;
+	private Container[] containers;
+	private int size;
+
+	public CompressedBitmap() {
+		//Constructor method
+
+		this.keys = new char[4];
+		this.containers = new Container[4];
+		this.size = 0;
+	}
+
+	public static CompressedBitmap of(IntList values) {
+		//Builds a bitmap holding every value - NB repeats are only stored once
+		//@param values the values
+		//@return the new bitmap
+
+		CompressedBitmap bitmap = new CompressedBitmap();
+		for(int i = 0; i < values.size(); i++){
+			bitmap.add(values.get(i));
+		}
+		bitmap.optimise();
+
+		return bitmap;
+	}
+
+	public void add(int value) {
+		//Adds a value to the set
+		//@param value the value to add
+
+		int flipped = value ^ Integer.MIN_VALUE;
+		int index = find((char) (flipped >>> 16));
+
+		if(index < 0){
+			index = -index-1;
+			insertContainer(index, (char) (flipped >>> 16), new ArrayContainer());
+		}
+		containers[index] = containers[index].add((char) flipped);
+	}
+
+	public boolean remove(int value) {
+		//Removes a value from the set
+		//@param value the value to remove
+		//@return true if the value was there
+
+		int flipped = value ^ Integer.MIN_VALUE;
+		int index = find((char) (flipped >>> 16));
+
+		if(index < 0 || !containers[index].contains((char) flipped)){
+			return false;
+		}
+
+		containers[index] = containers[index].remove((char) flipped);
+		if(containers[index].cardinality() == 0){
+			removeContainer(index);
+		}
+
+		return true;
+	}
+
+	public boolean contains(int value) {
+		//Checks whether the value is in the set
+		//@param value the value
+		//@return true if it is
+
+		int flipped = value ^ Integer.MIN_VALUE;
+		int index = find((char) (flipped >>> 16));
+
+		return index >= 0 && containers[index].contains((char) flipped);
+	}
+
+	public int cardinality() {
+		//Counts the values in the set
+		//@return the number of values
+
+		int total = 0;
+		for(int i = 0; i < size; i++) total += containers[i].cardinality();
+
+		return total;
+	}
+
+	public int select(int rank) {
+		//Finds the value with the given rank - NB 0 is the smallest
+		//@param rank the rank
+		//@return the value
+
+		for(int i = 0; i < size; i++){
+			int cardinality = containers[i].cardinality();
+			if(rank < cardinality){
+				return join(keys[i], containers[i].select(rank));
+			}
+			rank -= cardinality;
+		}
+
+		throw new IndexOutOfBoundsException("Rank: " + rank);
+	}
+
+	public int first() {
+		//Finds the smallest value - NB the set must not be empty
+		//@return the smallest value
+
+		return join(keys[0], containers[0].first());
+	}
+
+	public int last() {
+		//Finds the largest value - NB the set must not be empty
+		//@return the largest value
+
+		return join(keys[size-1], containers[size-1].last());
+	}
+
+	public long sum() {
+		//Adds up every value in 64 bits
+		//@return the total
+
+		long total = 0;
+		int[] buffer = new int[Math.min(65536, Math.max(1, cardinality()))];
+
+		for(int i = 0; i < size; i++){
+			int base = (keys[i] << 16) ^ Integer.MIN_VALUE;
+			int count = containers[i].fill(buffer, 0);
+			for(int j = 0; j < count; j++) total += base | buffer[j];
+		}
+
+		return total;
+	}
+
+	public IntList toIntList() {
+		//Expands the set into an IntList in ascending order
+		//@return the values
+
+		int[] values = toArray();
+		IntList list = new IntList(values.length);
+		for(int next: values) list.add(next);
+
+		return list;
+	}
+
+	public int[] toArray() {
+		//Expands the set into an array in ascending order
+		//@return the values
+
+		int[] values = new int[cardinality()];
+		int offset = 0;
+
+		for(int i = 0; i < size; i++){
+			int base = (keys[i] << 16) ^ Integer.MIN_VALUE;
+			int count = containers[i].fill(values, offset);
+			for(int j = offset; j < offset+count; j++) values[j] |= base;
+			offset += count;
+		}
+
+		return values;
+	}
+
+	public CompressedBitmap copy() {
+		//Copies the bitmap so the copy can be changed without affecting this one
+		//@return the copy
+
+		CompressedBitmap copy = new CompressedBitmap();
+		copy.keys = Arrays.copyOf(keys, Math.max(size, 4));
+		copy.containers = new Container[copy.keys.length];
+		for(int i = 0; i < size; i++) copy.containers[i] = containers[i].copy();
+		copy.size = size;
+
+		return copy;
+	}
+
+	public long sizeInBytes() {
+		//Estimates the heap used by the bitmap
+		//@return the number of bytes
+
+		long bytes = 16 + 16 + keys.length*2L + 16 + containers.length*4L;
+		for(int i = 0; i < size; i++) bytes += containers[i].sizeInBytes();
+
+		return bytes;
+	}
+
+	public String describe() {
+		//Lists how many chunks use each container type, e.g. 2 array 1 bitmap 0 run
+		//@return the description
+
+		int arrays = 0, bitmaps = 0, runs = 0;
+		for(int i = 0; i < size; i++){
+			if(containers[i] instanceof ArrayContainer) arrays++;
+			else if(containers[i] instanceof BitmapContainer) bitmaps++;
+			else runs++;
+		}
+
+		return arrays + " array " + bitmaps + " bitmap " + runs + " run";
+	}
+
+	public void optimise() {
+		//Switches every chunk to its smallest container type - NB call after bulk changes
+
+		for(int i = 0; i < size; i++){
+			containers[i] = Container.fromWords(containers[i].words());
+		}
+	}
+
+	public static CompressedBitmap and(CompressedBitmap a, CompressedBitmap b) {
+		//Computes the values in both a and b
+		//@return the intersection
+
+		CompressedBitmap result = new CompressedBitmap();
+		int i = 0, j = 0;
+
+		while(i < a.size && j < b.size){
+			if(a.keys[i] < b.keys[j]){
+				i++;
+			} else if(a.keys[i] > b.keys[j]){
+				j++;
+			} else {
+				Container chunk = Container.and(a.containers[i], b.containers[j]);
+				if(chunk.cardinality() > 0) result.appendContainer(a.keys[i], chunk);
+				i++;
+				j++;
+			}
+		}
+
+		return result;
+	}
+
+	public static CompressedBitmap or(CompressedBitmap a, CompressedBitmap b) {
+		//Computes the values in either a or b
+		//@return the union
+
+		CompressedBitmap result = new CompressedBitmap();
+		int i = 0, j = 0;
+
+		while(i < a.size || j < b.size){
+			if(j == b.size || (i < a.size && a.keys[i] < b.keys[j])){
+				result.appendContainer(a.keys[i], a.containers[i].copy());
+				i++;
+			} else if(i == a.size || a.keys[i] > b.keys[j]){
+				result.appendContainer(b.keys[j], b.containers[j].copy());
+				j++;
+			} else {
+				result.appendContainer(a.keys[i], Container.or(a.containers[i], b.containers[j]));
+				i++;
+				j++;
+			}
+		}
+
+		return result;
+	}
+
+	public static CompressedBitmap andNot(CompressedBitmap a, CompressedBitmap b) {
+		//Computes the values in a but not in b
+		//@return the difference
+
+		CompressedBitmap result = new CompressedBitmap();
+		int j = 0;
+
+		for(int i = 0; i < a.size; i++){
+			while(j < b.size && b.keys[j] < a.keys[i]) j++;
+
+			Container chunk;
+			if(j < b.size && b.keys[j] == a.keys[i]){
+				chunk = Container.andNot(a.containers[i], b.containers[j]);
+			} else {
+				chunk = a.containers[i].copy();
+			}
+			if(chunk.cardinality() > 0) result.appendContainer(a.keys[i], chunk);
+		}
+
+		return result;
+	}
+
+	public static CompressedBitmap diff(List<CompressedBitmap> sets) {
+		//Computes the values found in exactly one of the sets
+		//once holds values seen in exactly one set so far, twice the values seen in more than one
+		//@param sets the sets
+		//@return the difference
+
+		CompressedBitmap once = new CompressedBitmap();
+		CompressedBitmap twice = new CompressedBitmap();
+
+		for(CompressedBitmap nextSet: sets){
+			twice = or(twice, and(once, nextSet));
+			once = andNot(or(once, nextSet), twice);
+		}
+
+		return once;
+	}
+
+	public static CompressedBitmap inter(List<CompressedBitmap> sets) {
+		//Computes the values found in every set
+		//@param sets the sets - NB at least one
+		//@return the intersection
+
+		CompressedBitmap result = sets.get(0);
+		for(int i = 1; i < sets.size(); i++) result = and(result, sets.get(i));
+
+		return result;
+	}
+
+	public static CompressedBitmap union(List<CompressedBitmap> sets) {
+		//Computes the values found in any set
+		//@param sets the sets
+		//@return the union
+
+		CompressedBitmap result = new CompressedBitmap();
+		for(CompressedBitmap nextSet: sets) result = or(result, nextSet);
+
+		return result;
+	}
+
+	private static int join(char key, int low) {
+		//Rebuilds a value from its chunk key and low 16 bits
+		//@return the value
+
+		return ((key << 16) | low) ^ Integer.MIN_VALUE;
+	}
+
+	private int find(char key) {
+		//Binary searches the chunk keys
+		//@param key the chunk key
+		//@return the index of the chunk - NB -(insertion point)-1 if missing
+
+		int low = 0, high = size-1;
+		while(low <= high){
+			int middle = (low+high) >>> 1;
+			if(keys[middle] < key) low = middle+1;
+			else if(keys[middle] > key) high = middle-1;
+			else return middle;
+		}
+
+		return -(low+1);
+	}
+
+	private void insertContainer(int index, char key, Container container) {
+		//Inserts a chunk keeping the keys sorted
+
+		if(size == keys.length){
+			keys = Arrays.copyOf(keys, size*2);
+			containers = Arrays.copyOf(containers, size*2);
+		}
+		System.arraycopy(keys, index, keys, index+1, size-index);
+		System.arraycopy(containers, index, containers, index+1, size-index);
+		keys[index] = key;
+		containers[index] = container;
+		size++;
+	}
+
+	private void appendContainer(char key, Container container) {
+		//Adds a chunk whose key is larger than every existing key
+
+		insertContainer(size, key, container);
+	}
+
+	private void removeContainer(int index) {
+		//Removes an empty chunk
+
+		System.arraycopy(keys, index+1, keys, index, size-index-1);
+		System.arraycopy(containers, index+1, containers, index, size-index-1);
+		size--;
+		containers[size] = null;
+	}
+
+	private abstract static class Container {
+		//One chunk of up to 65536 values, each stored as its low 16 bits
+
+		abstract int cardinality();
+		abstract boolean contains(char low);
+		abstract Container add(char low); //NB may return a different container type
+		abstract Container remove(char low); //NB may return a different container type
+		abstract int select(int rank);
+		abstract int first();
+		abstract int last();
+		abstract int fill(int[] target, int offset); //Writes the low bits in ascending order, returns how many
+		abstract long[] words(); //The chunk as a 65536 bit bitmap
+		abstract Container copy();
+		abstract long sizeInBytes();
+
+		static Container fromWords(long[] words) {
+			//Builds whichever container type is smallest for the bits set in words
+			//@param words the chunk as a bitmap - NB may be kept by a BitmapContainer
+			//@return the container
+
+			int cardinality = 0;
+			int runs = 0;
+			for(int w = 0; w < WORDS; w++){
+				long word = words[w];
+				cardinality += Long.bitCount(word);
+				//A run starts at every set bit whose lower neighbour is clear
+				long carry = w == 0 ? 0 : words[w-1] >>> 63;
+				runs += Long.bitCount(word & ~((word << 1) | carry));
+			}
+
+			long arrayBytes = 2L*cardinality;
+			long runBytes = 4L*runs;
+			long bitmapBytes = 8L*WORDS;
+
+			if(runBytes < arrayBytes && runBytes < bitmapBytes){
+				return RunContainer.fromWords(words, runs);
+			} else if(cardinality <= ARRAY_LIMIT){
+				return ArrayContainer.fromWords(words, cardinality);
+			}
+
+			return new BitmapContainer(words, cardinality);
+		}
+
+		static Container plain(long[] words) {
+			//Builds an array or bitmap container - NB never a run container, used before changing a run
+			//@param words the chunk as a bitmap
+			//@return the container
+
+			int cardinality = 0;
+			for(long word: words) cardinality += Long.bitCount(word);
+
+			if(cardinality <= ARRAY_LIMIT){
+				return ArrayContainer.fromWords(words, cardinality);
+			}
+
+			return new BitmapContainer(words, cardinality);
+		}
+
+		static Container and(Container a, Container b) {
+			//Intersects two chunks
+			//@return the intersection
+
+			if(a instanceof ArrayContainer || b instanceof ArrayContainer){
+				//Probing the other chunk for each array value is cheapest
+				ArrayContainer small = (ArrayContainer) (a instanceof ArrayContainer ? a : b);
+				Container other = small == a ? b : a;
+				ArrayContainer result = new ArrayContainer();
+				for(int i = 0; i < small.cardinality; i++){
+					if(other.contains(small.content[i])) result.appendSorted(small.content[i]);
+				}
+				return result;
+			}
+
+			long[] words = a.words();
+			long[] otherWords = b.words();
+			for(int w = 0; w < WORDS; w++) words[w] &= otherWords[w];
+
+			return fromWords(words);
+		}
+
+		static Container or(Container a, Container b) {
+			//Unions two chunks
+			//@return the union
+
+			long[] words = a.words();
+			long[] otherWords = b.words();
+			for(int w = 0; w < WORDS; w++) words[w] |= otherWords[w];
+
+			return fromWords(words);
+		}
+
+		static Container andNot(Container a, Container b) {
+			//Removes the values of b from a
+			//@return the difference
+
+			if(a instanceof ArrayContainer){
+				ArrayContainer array = (ArrayContainer) a;
+				ArrayContainer result = new ArrayContainer();
+				for(int i = 0; i < array.cardinality; i++){
+					if(!b.contains(array.content[i])) result.appendSorted(array.content[i]);
+				}
+				return result;
+			}
+
+			long[] words = a.words();
+			long[] otherWords = b.words();
+			for(int w = 0; w < WORDS; w++) words[w] &= ~otherWords[w];
+
+			return fromWords(words);
+		}
+	}
+
+	private static class ArrayContainer extends Container {
+		//Sorted array of low bits - best for sparse chunks
+
+		private char[] content = new char[4];
+		private int cardinality = 0;
+
+		static ArrayContainer fromWords(long[] words, int cardinality) {
+			ArrayContainer array = new ArrayContainer();
+			array.content = new char[Math.max(cardinality, 4)];
+			for(int w = 0; w < WORDS; w++){
+				long word = words[w];
+				while(word != 0){
+					array.content[array.cardinality++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+					word &= word-1;
+				}
+			}
+			return array;
+		}
+
+		void appendSorted(char low) {
+			//Adds a value larger than every value already held
+			if(cardinality == content.length) content = Arrays.copyOf(content, cardinality*2);
+			content[cardinality++] = low;
+		}
+
+		int cardinality() {
+			return cardinality;
+		}
+
+		boolean contains(char low) {
+			return Arrays.binarySearch(content, 0, cardinality, low) >= 0;
+		}
+
+		Container add(char low) {
+			int index = Arrays.binarySearch(content, 0, cardinality, low);
+			if(index >= 0) return this;
+			if(cardinality == ARRAY_LIMIT){
+				return new BitmapContainer(words(), cardinality).add(low);
+			}
+
+			index = -index-1;
+			if(cardinality == content.length) content = Arrays.copyOf(content, Math.min(cardinality*2, ARRAY_LIMIT));
+			System.arraycopy(content, index, content, index+1, cardinality-index);
+			content[index] = low;
+			cardinality++;
+			return this;
+		}
+
+		Container remove(char low) {
+			int index = Arrays.binarySearch(content, 0, cardinality, low);
+			if(index >= 0){
+				System.arraycopy(content, index+1, content, index, cardinality-index-1);
+				cardinality--;
+			}
+			return this;
+		}
+
+		int select(int rank) {
+			return content[rank];
+		}
+
+		int first() {
+			return content[0];
+		}
+
+		int last() {
+			return content[cardinality-1];
+		}
+
+		int fill(int[] target, int offset) {
+			for(int i = 0; i < cardinality; i++) target[offset+i] = content[i];
+			return cardinality;
+		}
+
+		long[] words() {
+			long[] words = new long[WORDS];
+			for(int i = 0; i < cardinality; i++) words[content[i] >>> 6] |= 1L << content[i];
+			return words;
+		}
+
+		Container copy() {
+			ArrayContainer copy = new ArrayContainer();
+			copy.content = Arrays.copyOf(content, Math.max(cardinality, 4));
+			copy.cardinality = cardinality;
+			return copy;
+		}
+
+		long sizeInBytes() {
+			return 16 + 16 + content.length*2L;
+		}
+	}
+
+	private static class BitmapContainer extends Container {
+		//Plain 65536 bit bitmap - best for dense chunks
+
+		private long[] bits;
+		private int cardinality;
+
+		BitmapContainer(long[] bits, int cardinality) {
+			this.bits = bits;
+			this.cardinality = cardinality;
+		}
+
+		int cardinality() {
+			return cardinality;
+		}
+
+		boolean contains(char low) {
+			return (bits[low >>> 6] & (1L << low)) != 0;
+		}
+
+		Container add(char low) {
+			if(!contains(low)){
+				bits[low >>> 6] |= 1L << low;
+				cardinality++;
+			}
+			return this;
+		}
+
+		Container remove(char low) {
+			if(contains(low)){
+				bits[low >>> 6] &= ~(1L << low);
+				cardinality--;
+				if(cardinality <= ARRAY_LIMIT/2){
+					return ArrayContainer.fromWords(bits, cardinality);
+				}
+			}
+			return this;
+		}
+
+		int select(int rank) {
+			for(int w = 0; w < WORDS; w++){
+				int count = Long.bitCount(bits[w]);
+				if(rank < count){
+					long word = bits[w];
+					for(int i = 0; i < rank; i++) word &= word-1;
+					return (w << 6) + Long.numberOfTrailingZeros(word);
+				}
+				rank -= count;
+			}
+			throw new IndexOutOfBoundsException();
+		}
+
+		int first() {
+			int w = 0;
+			while(bits[w] == 0) w++;
+			return (w << 6) + Long.numberOfTrailingZeros(bits[w]);
+		}
+
+		int last() {
+			int w = WORDS-1;
+			while(bits[w] == 0) w--;
+			return (w << 6) + 63 - Long.numberOfLeadingZeros(bits[w]);
+		}
+
+		int fill(int[] target, int offset) {
+			int count = 0;
+			for(int w = 0; w < WORDS; w++){
+				long word = bits[w];
+				while(word != 0){
+					target[offset+count++] = (w << 6) + Long.numberOfTrailingZeros(word);
+					word &= word-1;
+				}
+			}
+			return count;
+		}
+
+		long[] words() {
+			return Arrays.copyOf(bits, WORDS);
+		}
+
+		Container copy() {
+			return new BitmapContainer(words(), cardinality);
+		}
+
+		long sizeInBytes() {
+			return 16 + 16 + 8L*WORDS;
+		}
+	}
+
+	private static class RunContainer extends Container {
+		//Pairs of (start, length-1) for each run of consecutive values - best for ranges
+		//NB changing a run container turns it into an array or bitmap, optimise() brings the runs back
+
+		private char[] runs;
+		private int count;
+
+		static RunContainer fromWords(long[] words, int count) {
+			RunContainer container = new RunContainer();
+			container.runs = new char[count*2];
+			int start = -1;
+			for(int bit = 0; bit <= 65536; bit++){
+				boolean set = bit < 65536 && (words[bit >>> 6] & (1L << bit)) != 0;
+				if(set && start < 0){
+					start = bit;
+				} else if(!set && start >= 0){
+					container.runs[container.count*2] = (char) start;
+					container.runs[container.count*2+1] = (char) (bit-1-start);
+					container.count++;
+					start = -1;
+				}
+			}
+			return container;
+		}
+
+		int cardinality() {
+			int total = 0;
+			for(int i = 0; i < count; i++) total += runs[i*2+1] + 1;
+			return total;
+		}
+
+		boolean contains(char low) {
+			int lowIndex = 0, highIndex = count-1;
+			while(lowIndex <= highIndex){
+				int middle = (lowIndex+highIndex) >>> 1;
+				int start = runs[middle*2];
+				if(low < start) highIndex = middle-1;
+				else if(low > start + runs[middle*2+1]) lowIndex = middle+1;
+				else return true;
+			}
+			return false;
+		}
+
+		Container add(char low) {
+			return contains(low) ? this : Container.plain(words()).add(low);
+		}
+
+		Container remove(char low) {
+			return contains(low) ? Container.plain(words()).remove(low) : this;
+		}
+
+		int select(int rank) {
+			for(int i = 0; i < count; i++){
+				int length = runs[i*2+1] + 1;
+				if(rank < length) return runs[i*2] + rank;
+				rank -= length;
+			}
+			throw new IndexOutOfBoundsException();
+		}
+
+		int first() {
+			return runs[0];
+		}
+
+		int last() {
+			return runs[count*2-2] + runs[count*2-1];
+		}
+
+		int fill(int[] target, int offset) {
+			int written = 0;
+			for(int i = 0; i < count; i++){
+				int start = runs[i*2];
+				int end = start + runs[i*2+1];
+				for(int value = start; value <= end; value++) target[offset+written++] = value;
+			}
+			return written;
+		}
+
+		long[] words() {
+			long[] words = new long[WORDS];
+			for(int i = 0; i < count; i++){
+				int start = runs[i*2];
+				int end = start + runs[i*2+1];
+				for(int value = start; value <= end; value++) words[value >>> 6] |= 1L << value;
+			}
+			return words;
+		}
+
+		Container copy() {
+			RunContainer copy = new RunContainer();
+			copy.runs = Arrays.copyOf(runs, count*2);
+			copy.count = count;
+			return copy;
+		}
+
+		long sizeInBytes() {
+			return 16 + 16 + runs.length*2L;
+		}
+	}
+}
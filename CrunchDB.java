@@ -1,8 +1,22 @@
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.HashMap;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.io.OutputStreamWriter;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.Writer;
 
 /**
  * This is responsible for the overall management of the database.
@@ -13,677 +27,1002 @@ import java.util.Collections;
 
 public class CrunchDB {
 
-	private List<Entry> entries;
-	private List<Snapshot> snapshots;
+	//Sessions on different threads share the database. A command that names keys holds the lock stripes
+	//of those keys while it runs, and one that doesn't (SNAPSHOT, ROLLBACK, LIST KEYS...) holds every stripe.
+	//So an Entry is only touched by one command at a time, and snapshots, archives and generation only
+	//change while nothing else runs. The entries map itself is changed by commands on different keys at once.
+	private static final int LOCK_STRIPES = 256;
+	private final KeyLocks locks;
+
+	private volatile Map<String, Entry> entries; //Keyed by entry key - NB hashed, each Entry keeps its insertion order for LIST KEYS/ENTRIES
+	private final AtomicLong sequence; //Numbers commands from every session - NB a new key is listed by its command's number
+	private NavigableMap<Integer, Snapshot> snapshots; //Keyed by id - ids only ever increase so this is also oldest to newest
+
+	//Snapshots share the entries map and Entry objects with the current state rather than copying them.
+	//entriesShared says the map itself belongs to a snapshot, and any Entry whose generation is older
+	//than ours was taken by a snapshot - both get copied the first time we change them.
+	private volatile boolean entriesShared;
+	private int generation;
+
+	//Keys in the current state can be given a deadline. Sessions remove expired keys a few at a time before
+	//each command, and any key a command names is checked first so it never sees one that has expired.
+	//Snapshots keep no deadlines - a key taken by a snapshot stays there until dropped or purged.
+	private TimerWheel expiries;
+
+	//ARCHIVE ... ASYNC hands the snapshot to a job on a background thread. The snapshot stays pinned until a
+	//command holding every lock sees the job finish, so DROP, ROLLBACK and RESTORE refuse to remove it. Pins only
+	//change while a command holds every lock, so a command always sees the same answer as its log record did.
+	private NavigableMap<Integer, ArchiveJob> archives; //Keyed by job id - finished jobs stay until ARCHIVE STATUS reports them
+	private Map<Integer, Integer> pins; //Unfinished jobs for each snapshot id
+	private int nextJob;
+	private ExecutorService archiver; //NB created by the first ARCHIVE ... ASYNC
 
 	public CrunchDB() {
 		//Constructor method
 
-		this.entries = new ArrayList<Entry>();
-		this.snapshots = new ArrayList<Snapshot>();
+		this.locks = new KeyLocks(LOCK_STRIPES);
+		this.entries = new ConcurrentHashMap<String, Entry>();
+		this.sequence = new AtomicLong();
+		this.snapshots = new TreeMap<Integer, Snapshot>();
+		this.entriesShared = false;
+		this.generation = 0;
+		this.expiries = new TimerWheel();
+		this.archives = new TreeMap<Integer, ArchiveJob>();
+		this.pins = new HashMap<Integer, Integer>();
+		this.nextJob = 1;
 	}
 
-	private void listKeys() {
+	private Map<String, Entry> ownEntries() {
+		//Gets the entries map ready to be changed, copying it first if a snapshot shares it
+		//NB commands on other keys may get here at the same time, so only the first one copies it
+		//@return the entries map
+
+		if(entriesShared){
+			synchronized(this){
+				if(entriesShared){
+					entries = new ConcurrentHashMap<String, Entry>(entries);
+					entriesShared = false;
+				}
+			}
+		}
+
+		return entries;
+	}
+
+	private void put(Entry entry, long order) {
+		//Adds or replaces an entry - NB a replaced key keeps its place in the insertion order
+		//@param entry the entry
+		//@param order its place in the insertion order if the key is new
+
+		Entry old = entries.get(entry.getKey());
+		entry.setOrder(old != null ? old.getOrder() : order);
+		ownEntries().put(entry.getKey(), entry);
+	}
+
+	public long nextSequence() {
+		//Numbers a command, e.g. so keys it adds are listed after those added by commands numbered before it
+		//@return a number higher than any given before
+
+		return sequence.getAndIncrement();
+	}
+
+	public KeyLocks getLocks() {
+		//Getter method for locks
+		//@return the locks a session holds while it runs a command
+
+		return locks;
+	}
+
+	private Entry mutable(String key) {
+		//Finds the entry for key ready to be changed in place, copying it first if a snapshot shares it
+		//@param key the key of the entry
+		//@return the entry - NB null if key doesn't exist
+
+		Entry next = entries.get(key);
+
+		if(next != null && next.getGeneration() != generation){
+			next = next.copy(generation);
+			ownEntries().put(key, next);
+		}
+
+		return next;
+	}
+
+	private List<Entry> lookup(List<String> keys) {
+		//Resolves every key to its entry
+		//@param keys the keys of the entries
+		//@return the entries in the same order as keys - NB null if any key doesn't exist
+
+		List<Entry> found = new ArrayList<Entry>(keys.size());
+
+		for(String nextKey: keys){
+			Entry nextEntry = entries.get(nextKey);
+			if(nextEntry == null){
+				return null;
+			}
+			found.add(nextEntry);
+		}
+
+		return found;
+	}
+
+	private void listKeys(ResponseWriter out) {
 		//Displays all keys in the current state
+		//@param out where the response is written
 
 		if(entries.size() == 0){
-			System.out.println("no keys");
+			out.println("no keys");
 		} else {
-			for(int i = entries.size()-1; i >= 0; i--){
-				System.out.println(entries.get(i).getKey());
+			List<Entry> ordered = Entry.inOrder(entries.values());
+			for(int i = ordered.size()-1; i >= 0; i--){
+				out.println(ordered.get(i).getKey());
 			}
 		}
 
-		System.out.println();
+		out.println();
 	}
 
-	private void listEntries() {
+	private void listEntries(ResponseWriter out) {
 		//Displays all entries from most recently added to least recently, so we reverse it
+		//@param out where the response is written
 
 		if(entries.size() == 0){
-			System.out.println("no entries");
+			out.println("no entries");
 		} else {
-			List<Entry> revEntries = new ArrayList<Entry>(entries);
+			List<Entry> revEntries = Entry.inOrder(entries.values());
 			Collections.reverse(revEntries);
-			System.out.println(Entry.listAllEntries(revEntries));
+			Entry.listAllEntries(revEntries, out);
 		}
 
-		System.out.println();
+		out.println();
 	}
 
-	private void listSnapshot() {
+	private void listSnapshot(ResponseWriter out) {
 		//Displays all snapshots in the current state
+		//@param out where the response is written
 
 		if(snapshots.size() == 0){
-			System.out.println("no snapshots");
+			out.println("no snapshots");
 		} else {
-			List<Snapshot> revSnapshots = new ArrayList<Snapshot>(snapshots);
-			Collections.reverse(revSnapshots);
-			System.out.println(Snapshot.listAllSnapshots(revSnapshots));
+			List<Snapshot> revSnapshots = new ArrayList<Snapshot>(snapshots.descendingMap().values());
+			Snapshot.listAllSnapshots(revSnapshots, out);
 		}
 
-		System.out.println();
+		out.println();
 	}
 
-	private void get(String key) {
+	private void get(String key, ResponseWriter out) {
 		//Prints out the list of values associated with the key
 		//@param key the key whose value we want to print
+		//@param out where the response is written
 
-		Boolean foundKey = false;
-		for(Entry next: entries){
-			if(next.getKey().equals(key)){
-				System.out.println(next.get());
-				foundKey = true;
-			}
-		}
+		Entry next = entries.get(key);
 
-		if(!foundKey){
-			System.out.println("no such key");
+		if(next != null){
+			next.get(out);
+			out.println();
+		} else {
+			out.error("no such key");
 		}
 
-		System.out.println();
+		out.println();
 	}
 
-	private void del(String key) {
+	private void del(String key, ResponseWriter out) {
 		//Deletes entry from current state
 		//@param key the key of the entry
+		//@param out where the response is written
 
-		List<Entry> temp = new ArrayList<Entry>(entries);
-		Boolean foundKey = false;
-
-		for(int i = 0; i < entries.size(); i++){
-			if(entries.get(i).getKey().equals(key)){
-				temp.remove(i);
-				System.out.println("ok");
-				foundKey = true;
-			}
-		}
-
-		if(!foundKey){
-			System.out.println("no such key");
+		if(entries.containsKey(key)){
+			ownEntries().remove(key);
+			expiries.cancel(key);
+			out.println("ok");
+		} else {
+			out.error("no such key");
 		}
 
-		entries = temp;
-		System.out.println();
+		out.println();
 	}
 
-	private void set(String key, List<Integer> values) {
+	private void set(String key, List<Integer> values, long order, ResponseWriter out) {
 		//Sets the entry values for a specific key
 		//@param key the key value of the entry
 		//@param values the list of values associated with the key
+		//@param order its place in the insertion order if the key is new
+		//@param out where the response is written
 
-		boolean reassigned = false;
+		//NB putting an existing key keeps its place in the insertion order, but not its deadline
+		put(new Entry(key, values, generation), order);
+		expiries.cancel(key);
 
-		for(int i = 0; i < entries.size(); i++){
-			if(entries.get(i).getKey().equals(key)){
-				//We already have that key in our list of entries - so we need to remove it
-				entries.get(i).set(values);
-				reassigned = true;
-				break;
-			}
+		out.println("ok").println();
+	}
+
+	private void setAs(String key, boolean asBitmap, List<Integer> values, long order, ResponseWriter out) {
+		//Sets or converts how an entry's values are stored - SET <key> AS BITMAP|LIST [<value ...>]
+		//@param key the key value of the entry
+		//@param asBitmap true to store the values as a compressed bitmap, false for a list
+		//@param values the new values - NB if empty we convert the existing entry instead
+		//@param order its place in the insertion order if the key is new
+		//@param out where the response is written
+
+		Entry next;
+
+		if(values.size() > 0){
+			next = new Entry(key, values, generation);
+			put(next, order);
+			expiries.cancel(key);
+		} else {
+			next = mutable(key);
 		}
 
-		if(!reassigned){
-			//A new key-value pair to add to our list of entries
-			entries.add(new Entry(key, values));
+		if(next != null){
+			if(asBitmap) next.toBitmap();
+			else next.toList();
+			out.println("ok");
+		} else {
+			out.error("no such key");
+		}
+
+		out.println();
+	}
+
+	private void memory(String key, ResponseWriter out) {
+		//Displays how the entry's values are stored and roughly how much heap they use
+		//@param key the key of the entry
+		//@param out where the response is written
+
+		Entry next = entries.get(key);
+
+		if(next != null){
+			out.println(next.memory());
+		} else {
+			out.error("no such key");
 		}
 
-		System.out.println("ok\n");
+		out.println();
 	}
 
-	private void push(String key, List<Integer> values) {
+	private void push(String key, List<Integer> values, ResponseWriter out) {
 		//Pushes the values given to the front of the entry given by the key
 		//@param key the key value of the entry
 		//@param values the values to push
+		//@param out where the response is written
 
-		Boolean foundKey = false;
+		Entry next = mutable(key);
 
-		for(Entry next: entries){
-			if(next.getKey().equals(key)){
-				next.push(values);
-				foundKey = true;
-				System.out.println("ok");
-			}
-		}
-
-		if(!foundKey){
-			System.out.println("no such key");
+		if(next != null){
+			next.push(values);
+			out.println("ok");
+		} else {
+			out.error("no such key");
 		}
 
-		System.out.println();
+		out.println();
 	}
 
-	private void append(String key, List<Integer> values) {
+	private void append(String key, List<Integer> values, ResponseWriter out) {
 		//Appends values to the end of the entry given by key
 		//@param key the key value of the entry
 		//@param values list of values to append
+		//@param out where the response is written
 
-		Boolean foundKey = false;
+		Entry next = mutable(key);
 
-		for(Entry next: entries){
-			if(next.getKey().equals(key)){
-				next.append(values);
-				foundKey = true;
-				System.out.println("ok");
-			}
-		}
-
-		if(!foundKey){
-			System.out.println("no such key");
+		if(next != null){
+			next.append(values);
+			out.println("ok");
+		} else {
+			out.error("no such key");
 		}
 
-		System.out.println();
+		out.println();
 	}
 
-	private void pick(String key, int index) {
+	private void pick(String key, int index, ResponseWriter out) {
 		//Displays the value gievn by the index
 		//@param key the key of the entry
 		//@param index the index of the value we want to display
+		//@param out where the response is written
 
-		Boolean foundKey = false;
+		Entry next = entries.get(key);
 
-		for(Entry next: entries){
-			if(next.getKey().equals(key)){
-				Integer pick = next.pick(index);
-				if(pick != null){
-					System.out.println(pick);
-				}
-				foundKey = true;
+		if(next != null){
+			Integer pick = next.pick(index);
+			if(pick != null){
+				out.println(pick);
+			} else {
+				out.error("index out of range");
 			}
+		} else {
+			out.error("no such key");
 		}
 
-		if(!foundKey){
-			System.out.println("no such key");
-		}
-
-		System.out.println();
+		out.println();
 	}
 
-	private void pluck(String key, int index) {
+	private void pluck(String key, int index, ResponseWriter out) {
 		//Displays and removes the value given by the index
 		//@param key the key of the entry
 		//@param index the index of the value we want to display and remove
+		//@param out where the response is written
 
-		Boolean foundKey = false;
+		Entry next = mutable(key);
 
-		for(Entry next: entries){
-			if(next.getKey().equals(key)){
-				Integer pluck = next.pluck(index);
-				if(pluck != null){
-					System.out.println(pluck);
-				}
-				foundKey = true;
+		if(next != null){
+			Integer pluck = next.pluck(index);
+			if(pluck != null){
+				out.println(pluck);
+			} else {
+				out.error("index out of range");
 			}
+		} else {
+			out.error("no such key");
 		}
 
-		if(!foundKey){
-			System.out.println("no such key");
-		}
-
-		System.out.println();
+		out.println();
 	}
 
-	private void pop(String key) {
+	private void pop(String key, ResponseWriter out) {
 		//Displays and removes the front value
 		//@param key the key of the entry
+		//@param out where the response is written
 
-		Boolean foundKey = false;
+		Entry next = mutable(key);
 
-		for(Entry next: entries){
-			if(next.getKey().equals(key)){
-				Integer pop = next.pop();
-				if(pop != null){
-					System.out.println(pop);
-				}
-				foundKey = true;
+		if(next != null){
+			Integer pop = next.pop();
+			if(pop != null){
+				out.println(pop);
+			} else {
+				out.println("nil");
 			}
+		} else {
+			out.error("no such key");
 		}
 
-		if(!foundKey){
-			System.out.println("no such key");
-		}
-
-		System.out.println();
+		out.println();
 	}
 
 /*******************************************************START OF SNAPSHOT INVOLVING METHODS*******************************************************/
 
-	private void purge(String key) {
+	private void purge(String key, ResponseWriter out) {
         //Deletes entry from current state and all snapshots
         //@param the key of the entry
+        //@param out where the response is written
 		//Could use this.del but we have unnecassary print statements in it - NB purge always prints ok
 
-		List<Entry> temp = new ArrayList<Entry>(entries);
-
-		for(int i = 0; i < entries.size(); i++){
-			if(entries.get(i).getKey().equals(key)){
-				temp.remove(i);
-			}
+		if(entries.containsKey(key)){
+			ownEntries().remove(key);
 		}
+		expiries.cancel(key);
 
-		entries = temp;
-
-        for(Snapshot nextSnapshot: snapshots){
+        for(Snapshot nextSnapshot: snapshots.values()){
             nextSnapshot.removeKey(key);
         }
-		System.out.println("ok\n");
+		out.println("ok").println();
 	}
 
-	private void drop(int id) {
+	private void drop(int id, ResponseWriter out) {
         //Deletes snapshot
         //@param id the id of the snapshot
+        //@param out where the response is written
+
+        if(isPinned(id)){
+            out.error("snapshot is being archived");
+        } else if(snapshots.remove(id) != null){
+            out.println("ok");
+        } else {
+            out.error("no such snapshot");
+        }
 
-        List<Snapshot> temp = new ArrayList<Snapshot>(snapshots);
-        Boolean foundId = false;
+        out.println();
+	}
 
-        for(int i = 0; i < snapshots.size(); i++){
-            if(snapshots.get(i).getId() == id){
-                temp.remove(i);
-                foundId = true;
-                System.out.println("ok");
-            }
+	private void rollback(int id, ResponseWriter out) {
+        //Restores to snapshot and deletes newer snapshots
+        //@param id the id of the snapshot
+        //@param out where the response is written
+        //BE CAREFUL OF MUTABILITY!! - adopt shares the snapshot so nothing is copied until it changes
+
+        Snapshot next = snapshots.get(id);
+
+        if(next != null && isPinnedAfter(id)){
+            out.error("snapshot is being archived");
+        } else if(next != null){
+            adopt(next);
+            snapshots.tailMap(id, false).clear();
+            out.println("ok");
+        } else {
+            out.error("no such snapshot");
         }
 
-        if(!foundId){
-            System.out.println("no such snapshot");
-        }
+        out.println();
+	}
 
-        snapshots = temp;
+	private void adopt(Snapshot snapshot) {
+        //Makes the snapshot's entries the current state in O(1)
+        //The map and entries stay shared with the snapshot until a command changes them
+        //@param snapshot the snapshot to adopt
 
-        System.out.println();
+        entries = snapshot.rollback();
+        entriesShared = true;
+        generation++;
+        expiries.clear();
 	}
 
-	private void rollback(int id) {
-        //Restores to snapshot and deletes newer snapshots
+	private void checkout(int id, ResponseWriter out) {
+        //Same as rollback but doesn't get rid of snapshots
         //@param id the id of the snapshot
-        //BE CAREFUL OF MUTABILITY!!
-
-        List<Snapshot> tempSnapshot  = new ArrayList<Snapshot>();
-        List<Entry> tempEntry = new ArrayList<Entry>(); //For mutability once more
-        Boolean foundId = false;
-
-        for(Snapshot next: snapshots){
-            tempSnapshot.add(next);
-            if(next.getId() == id){
-                for(int i = 0; i < next.rollback().size(); i++){
-                    List<Integer> tempValues = new ArrayList<Integer>();
-
-                    for(int j = 0; j < next.rollback().get(i).getValues().size(); j++){
-                        tempValues.add(next.rollback().get(i).getValues().get(j));
-                    }
-
-                    tempEntry.add(new Entry(next.rollback().get(i).getKey(), tempValues));
-                }
-                entries = tempEntry;
-                foundId = true;
-                System.out.println("ok");
-                break;
-            }
+        //@param out where the response is written
+
+        Snapshot next = snapshots.get(id);
+
+        if(next != null){
+            adopt(next);
+            out.println("ok");
+        } else {
+            out.error("no such snapshot");
         }
 
-        if(!foundId){
-            System.out.println("no such snapshot");
+        out.println();
+	}
+
+	private void snapshot(ResponseWriter out) {
+        //Saves the current state as a snapshot.
+        //@param out where the response is written
+
+        //O(1) - the snapshot takes the current map as is, and we move to a new generation
+        //so the current state copies the map and each entry the first time it changes them
+        Map<String, Entry> temp = entries;
+        entriesShared = true;
+        generation++;
+
+		if(snapshots.size() > 0){
+			int lastId = snapshots.lastKey();
+			snapshots.put(lastId+1, new Snapshot(lastId+1, temp));
+			out.print("saved as snapshot ").println(lastId+1).println();
+		} else {
+			snapshots.put(1, new Snapshot(1, temp));
+			out.println("saved as snapshot 1").println();
+		}
+	}
+
+	private void archive(int id, String filename, boolean binary, ResponseWriter out) {
+        //Saves snapshot to file
+        //@param id the id of the snapshot we want to save
+        //@param filename the name of the file
+        //@param binary true to use the checksummed binary format instead of text
+        //@param out where the response is written
+
+        Snapshot next = snapshots.get(id);
+
+        if(next != null){
+            boolean written = binary ? next.archiveBinary(filename) : next.archive(filename);
+            if(written) out.println("ok");
+            else out.error("file not found");
+        } else {
+            out.error("no such snapshot");
         }
 
-        snapshots = tempSnapshot;
-        System.out.println();
+        out.println();
 	}
 
-	private void checkout(int id) {
-        //Same as rollback but doesn't get rid of snapshots
-        //@param id the id of the snapshot
+	private void archiveAsync(int id, String filename, boolean binary, ResponseWriter out) {
+        //Starts saving a snapshot to file on a background thread
+        //@param id the id of the snapshot we want to save
+        //@param filename the name of the file
+        //@param binary true to use the binary format
+        //@param out where the response is written - NB the job id, to look for in ARCHIVE STATUS
+
+        Snapshot next = snapshots.get(id);
+
+        if(next != null){
+            if(archiver == null){
+                archiver = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "archive");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
 
-        List<Entry> tempEntry = new ArrayList<Entry>(); //For mutability once more
-        Boolean foundId = false;
+            ArchiveJob job = new ArchiveJob(nextJob++, next, filename, binary);
+            archives.put(job.getId(), job);
+            pins.merge(id, 1, Integer::sum);
+            archiver.execute(job);
+            out.print("archiving as job ").println(job.getId());
+        } else {
+            out.error("no such snapshot");
+        }
+
+        out.println();
+	}
 
-        for(Snapshot next: snapshots){
-            if(next.getId() == id){
-                for(int i = 0; i < next.rollback().size(); i++){
-                    List<Integer> tempValues = new ArrayList<Integer>();
+	private void archiveStatus(ResponseWriter out) {
+        //Displays the progress of every archive job - NB finished jobs are shown once and then forgotten
+        //@param out where the response is written
 
-                    for(int j = 0; j < next.rollback().get(i).getValues().size(); j++){
-                        tempValues.add(next.rollback().get(i).getValues().get(j));
-                    }
+        if(archives.size() == 0){
+            out.println("no archive jobs");
+        }
 
-                    tempEntry.add(new Entry(next.rollback().get(i).getKey(), tempValues));
-                }
-                entries = tempEntry;
-                foundId = true;
-                System.out.println("ok");
-                break;
+        Iterator<ArchiveJob> jobs = archives.values().iterator();
+        while(jobs.hasNext()){
+            ArchiveJob next = jobs.next();
+            boolean finished = next.isFinished();
+            out.println(next.status());
+            if(finished){
+                release(next);
+                jobs.remove();
             }
         }
 
-        if(!foundId){
-            System.out.println("no such snapshot");
+        out.println();
+	}
+
+	public void releaseArchives() {
+        //Unpins the snapshots of jobs that have finished - called before each command that holds every lock
+
+        for(ArchiveJob next: archives.values()){
+            release(next);
         }
+	}
+
+	private void release(ArchiveJob job) {
+        //Unpins a job's snapshot if the job has finished
+        //@param job the job
 
-        System.out.println();
+        if(job.release()){
+            pins.computeIfPresent(job.getSnapshotId(), (id, count) -> count == 1 ? null : count-1);
+        }
 	}
 
-	private void snapshot() {
-        //Saves the current state as a snapshot.
+	public boolean isPinned(int id) {
+        //Checks whether a snapshot is being archived
+        //@param id the id of the snapshot
+        //@return true if a job still needs it
+
+        return pins.containsKey(id);
+	}
 
-        List<Entry> temp = new ArrayList<Entry>(); //For mutability reasons
+	public boolean isPinnedAfter(int id) {
+        //Checks whether a snapshot newer than one is being archived, which ROLLBACK would delete
+        //@param id the id of the snapshot
+        //@return true if a job still needs a newer one
 
-        for(Entry next: entries){
-            List<Integer> tempValues = new ArrayList<Integer>();
+        return isPinned(snapshots.tailMap(id, false).keySet());
+	}
 
-            for(int i = 0; i < next.getValues().size(); i++){
-                tempValues.add(next.getValues().get(i));
-            }
+	private boolean isPinned(Iterable<Integer> ids) {
+        //Checks whether any of some snapshots is being archived
+        //@param ids the ids of the snapshots
+        //@return true if a job still needs one of them
 
-            Entry tempEntry = new Entry(next.getKey(), tempValues);
-            temp.add(tempEntry);
+        if(pins.size() == 0){
+            return false;
         }
 
-		if(snapshots.size() > 0){
-			int lastId = snapshots.get(snapshots.size()-1).getId();
-			snapshots.add(new Snapshot(lastId+1, temp));
-			System.out.printf("saved as snapshot %d\n\n", lastId+1);
-		} else {
-			snapshots.add(new Snapshot(1, temp));
-			System.out.printf("saved as snapshot 1\n\n");
-		}
+        for(int next: ids){
+            if(pins.containsKey(next)) return true;
+        }
+
+        return false;
 	}
 
-	private void archive(int id, String filename) {
-        //Saves snapshot to file
-        //@param id the id of the snapshot we want to save
-        //@param filename the name of the file
+	public void finishArchives() {
+        //Waits for archives in progress to be written, e.g. before exiting
 
-        Boolean foundId = false;
-        for(Snapshot next: snapshots){
-            if(next.getId() == id){
-                next.archive(filename);
-                foundId = true;
-            }
+        if(archiver == null){
+            return;
         }
 
-        if(!foundId){
-            System.out.println("no such snapshot");
+        archiver.shutdown();
+        try{
+            archiver.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
         }
-
-        System.out.println();
 	}
 
-	private void restore(String filename) {
+	private void restore(String filename, ResponseWriter out) {
         //Loads and restore snapshot from a file - NB removes all current snapshots
         //@param filename filename which stores the desired snapshot
+        //@param out where the response is written
+
+        if(isPinned(snapshots.keySet())){
+            out.error("snapshot is being archived");
+            out.println();
+            return;
+        }
 
         List<Entry> restoredEntries = new ArrayList<Entry>();
-        restoredEntries = Snapshot.restore(filename);
+        restoredEntries = Snapshot.restore(filename, out);
 
         if(restoredEntries.size() != 0){
             snapshots.clear();
-            entries = restoredEntries;
-            System.out.println("ok");
+            Map<String, Entry> restored = new ConcurrentHashMap<String, Entry>();
+            for(Entry next: restoredEntries){
+                next.setOrder(nextSequence());
+                restored.put(next.getKey(), next);
+            }
+            entries = restored;
+            //Nothing else holds the restored entries and the old snapshots are gone, so we own them all
+            entriesShared = false;
+            generation = 0;
+            expiries.clear();
+            out.println("ok");
         }
 
-        System.out.println();
+        out.println();
 	}
 
-/*******************************************************END OF SNAPSHOT INVOLVING METHODS*******************************************************/
+	public void dump(Writer writer) throws IOException {
+		//Writes commands that rebuild the current state and every snapshot from an empty database, one per line
+		//Snapshot ids are kept: ids that were dropped are taken and dropped again at the end
+		//@param writer where the commands are written
 
-	private void min(String key) {
-		//Displays the minimum value
-		//@param key the key of the entry
+		Map<String, Entry> replayed = new HashMap<String, Entry>(); //What replaying the commands so far gives
+		List<Integer> dropped = new ArrayList<Integer>();
+		int nextId = 1;
 
-		Boolean foundKey = false;
+		for(Snapshot nextSnapshot: snapshots.values()){
+			dumpState(writer, replayed, nextSnapshot.rollback());
+			replayed = nextSnapshot.rollback();
 
-		for(Entry next: entries){
-			if(next.getKey().equals(key)){
-				Integer min = next.min();
-				if(min != null){
-					System.out.println(min);
-				}
-				foundKey = true;
+			//A new snapshot gets the id after the last one, so the gaps are filled and dropped later
+			for(; nextId <= nextSnapshot.getId(); nextId++){
+				writer.write("SNAPSHOT\n");
+				if(nextId != nextSnapshot.getId()) dropped.add(nextId);
 			}
 		}
 
-		if(!foundKey){
-			System.out.println("no such key");
+		for(int nextDrop: dropped){
+			writer.write("DROP " + nextDrop + "\n");
 		}
 
-		System.out.println();
+		dumpState(writer, replayed, entries);
+
+		for(Map.Entry<String, Long> next: expiries.deadlines().entrySet()){
+			writer.write("EXPIREAT " + next.getKey() + " " + next.getValue() + "\n");
+		}
 	}
 
-	private void max(String key) {
-		//Displays the maximum value
-		//@param key the key of the entry
+	private static void dumpState(Writer writer, Map<String, Entry> from, Map<String, Entry> to) throws IOException {
+		//Writes commands that turn one set of entries into another, keeping the order of the keys
+		//@param writer where the commands are written
+		//@param from the entries replay has so far
+		//@param to the entries wanted
 
-		Boolean foundKey = false;
+		if(from == to){
+			return;
+		}
 
-		for(Entry next: entries){
-			if(next.getKey().equals(key)){
-				Integer max = next.max();
-				if(max != null){
-					System.out.println(max);
-				}
-				foundKey = true;
-			}
+		for(Entry nextEntry: Entry.inOrder(from.values())){
+			writer.write("DEL " + nextEntry.getKey() + "\n");
 		}
 
-		if(!foundKey){
-			System.out.println("no such key");
+		for(Entry nextEntry: Entry.inOrder(to.values())){
+			IntList values = nextEntry.getIntValues();
+			writer.write(nextEntry.isBitmap() ? "SET " + nextEntry.getKey() + " AS BITMAP" : "SET " + nextEntry.getKey());
+
+			//SET needs a value, so an empty entry is given one and then popped
+			if(values.size() == 0){
+				writer.write(" 0\nPOP " + nextEntry.getKey());
+			}
+			for(int i = 0; i < values.size(); i++){
+				writer.write(' ');
+				writer.write(Integer.toString(values.get(i)));
+			}
+			writer.write('\n');
 		}
+	}
 
-		System.out.println();
+/*******************************************************END OF SNAPSHOT INVOLVING METHODS*******************************************************/
+
+	public String dueKey(long now) {
+		//Finds a key whose deadline has passed, to be removed with expireKey
+		//@param now the time in ms
+		//@return the key - NB null if none are due
+
+		return expiries.peek(now);
 	}
 
-	private void sum(String key) {
-		//Displays the Sum of values
+	public boolean expireKey(String key, long now) {
+		//Removes an entry if its deadline has passed - NB call it holding the key's lock, since it may have changed since dueKey
 		//@param key the key of the entry
+		//@param now the time in ms
+		//@return true if an entry was removed - NB so it can be logged as deleted
 
-		Boolean foundKey = false;
+		if(!expiries.isDue(key, now)){
+			return false;
+		}
 
-		for(Entry next: entries){
-			if(next.getKey().equals(key)){
-				Integer sum = next.sum();
-				if(sum != null){
-					System.out.println(sum);
-				}
-				foundKey = true;
+		expiries.cancel(key);
+		if(entries.containsKey(key)){
+			ownEntries().remove(key);
+			return true;
+		}
+
+		return false;
+	}
+
+	public static long deadline(long time, long ms) {
+		//Adds a number of ms to a time without overflowing
+		//@param time the time in ms
+		//@param ms how long after it
+		//@return the deadline
+
+		if(ms > 0 && time > Long.MAX_VALUE - ms) return Long.MAX_VALUE;
+		if(ms < 0 && time < Long.MIN_VALUE - ms) return Long.MIN_VALUE;
+		return time + ms;
+	}
+
+	private void expireAt(String key, long deadline, long now, ResponseWriter out) {
+		//Gives an entry a deadline, replacing any it had - NB one that has already passed deletes it now
+		//@param key the key of the entry
+		//@param deadline when it is deleted, in ms since the epoch
+		//@param now the time the command runs at, in ms
+		//@param out where the response is written
+
+		if(entries.containsKey(key)){
+			if(deadline <= now){
+				ownEntries().remove(key);
+				expiries.cancel(key);
+			} else {
+				expiries.schedule(key, deadline);
 			}
+			out.println("ok");
+		} else {
+			out.error("no such key");
 		}
 
-		if(!foundKey){
-			System.out.println("no such key");
+		out.println();
+	}
+
+	private void ttl(String key, long now, ResponseWriter out) {
+		//Displays how many ms an entry has left
+		//@param key the key of the entry
+		//@param now the time the command runs at, in ms
+		//@param out where the response is written - NB -1 if it has no deadline
+
+		if(entries.containsKey(key)){
+			long deadline = expiries.deadline(key);
+			out.println(deadline == -1 ? -1 : Math.max(0, deadline - now));
+		} else {
+			out.error("no such key");
 		}
 
-		System.out.println();
+		out.println();
 	}
 
-	private void len(String key) {
-		//Displays the number of values in the entry
+	private void min(String key, ResponseWriter out) {
+		//Displays the minimum value
 		//@param key the key of the entry
+		//@param out where the response is written
 
-		Boolean foundKey = false;
+		Entry next = entries.get(key);
 
-		for(Entry next: entries){
-			if(next.getKey().equals(key)){
-				System.out.println(next.len());
-				foundKey = true;
+		if(next != null){
+			Integer min = next.min();
+			if(min != null){
+				out.println(min);
+			} else {
+				out.println("nil");
 			}
+		} else {
+			out.error("no such key");
 		}
 
-		if(!foundKey){
-			System.out.println("no such key");
+		out.println();
+	}
+
+	private void max(String key, ResponseWriter out) {
+		//Displays the maximum value
+		//@param key the key of the entry
+		//@param out where the response is written
+
+		Entry next = entries.get(key);
+
+		if(next != null){
+			Integer max = next.max();
+			if(max != null){
+				out.println(max);
+			} else {
+				out.println("nil");
+			}
+		} else {
+			out.error("no such key");
 		}
 
-		System.out.println();
+		out.println();
 	}
 
-	private void rev(String key) {
-		//Reverses order of the values for the entry
+	private void sum(String key, ResponseWriter out) {
+		//Displays the Sum of values
 		//@param key the key of the entry
+		//@param out where the response is written
 
-		Boolean foundKey = false;
+		Entry next = entries.get(key);
 
-		for(Entry next:entries){
-			if(next.getKey().equals(key)){
-				next.rev();
-				System.out.println("ok");
-				foundKey = true;
+		if(next != null){
+			Long sum = next.sum();
+			if(sum != null){
+				out.println(sum);
+			} else {
+				out.println("nil");
 			}
+		} else {
+			out.error("no such key");
 		}
 
-		if(!foundKey){
-			System.out.println("no such key");
+		out.println();
+	}
+
+	private void len(String key, ResponseWriter out) {
+		//Displays the number of values in the entry
+		//@param key the key of the entry
+		//@param out where the response is written
+
+		Entry next = entries.get(key);
+
+		if(next != null){
+			out.println(next.len());
+		} else {
+			out.error("no such key");
 		}
 
-		System.out.println();
+		out.println();
 	}
 
-	private void uniq(String key) {
-		//Removes adjacent values
+	private void rev(String key, ResponseWriter out) {
+		//Reverses order of the values for the entry
 		//@param key the key of the entry
+		//@param out where the response is written
 
-		Boolean foundKey = false;
+		Entry next = mutable(key);
 
-		for(Entry next:entries){
-			if(next.getKey().equals(key)){
-				next.uniq();
-				System.out.println("ok");
-				foundKey = true;
-			}
+		if(next != null){
+			next.rev();
+			out.println("ok");
+		} else {
+			out.error("no such key");
 		}
 
-		if(!foundKey){
-			System.out.println("no such key");
+		out.println();
+	}
+
+	private void uniq(String key, ResponseWriter out) {
+		//Removes adjacent values
+		//@param key the key of the entry
+		//@param out where the response is written
+
+		Entry next = mutable(key);
+
+		if(next != null){
+			next.uniq();
+			out.println("ok");
+		} else {
+			out.error("no such key");
 		}
 
-		System.out.println();
+		out.println();
 	}
 
-	private void sort(String key) {
+	private void sort(String key, ResponseWriter out) {
 		//Sort in ascending order
 		//@param key the key of the entry
+		//@param out where the response is written
 
-		Boolean foundKey = false;
-
-		for(Entry next:entries){
-			if(next.getKey().equals(key)){
-				next.sort();
-				System.out.println("ok");
-				foundKey = true;
-			}
-		}
+		Entry next = mutable(key);
 
-		if(!foundKey){
-			System.out.println("no such key");
+		if(next != null){
+			next.sort();
+			out.println("ok");
+		} else {
+			out.error("no such key");
 		}
 
-		System.out.println();
+		out.println();
 	}
 
-	private void diff(List<String> keys) {
+	private void diff(List<String> keys, ResponseWriter out) {
 		//Displays set difference of values in key
 		//@param keys the keys of the entries
+		//@param out where the response is written
 		//We guarantee at least two keys (may not be valid) are passed to the func or an error message occurs during input reading
 
-		List<Entry> diffEntries = new ArrayList<Entry>();
+		List<Entry> diffEntries = lookup(keys);
 
-		for(String nextKey: keys){
-			for(Entry nextEntry: entries){
-				if(nextEntry.getKey().equals(nextKey)){
-					diffEntries.add(nextEntry);
-					break;
-				}
-			}
-		}
-
-		if(diffEntries.size() == keys.size()){
+		if(diffEntries != null){
 			//All the keys are valid
-			System.out.println(Entry.diff(diffEntries).toString().replace(",", ""));
+			out.values(Entry.diff(diffEntries)).println();
 		} else {
-			System.out.println("no such key");
+			out.error("no such key");
 		}
 
-		System.out.println();
+		out.println();
 	}
 
-	private void inter(List<String> keys) {
+	private void inter(List<String> keys, ResponseWriter out) {
 		//Displays the set intersection of values in keys.
 		//@param keys the keys of the entries
+		//@param out where the response is written
 		//We can guarantee at least two keys are passed once more (may be invalid)
 
-		List<Entry> interEntries = new ArrayList<Entry>();
-
-		for(String nextKey: keys){
-			for(Entry nextEntry: entries){
-				if(nextEntry.getKey().equals(nextKey)){
-					interEntries.add(nextEntry);
-					break;
-				}
-			}
-		}
+		List<Entry> interEntries = lookup(keys);
 
-		if(interEntries.size() == keys.size()){
+		if(interEntries != null){
 			//All the keys are valid
-			System.out.println(Entry.inter(interEntries).toString().replace(",", ""));
+			out.values(Entry.inter(interEntries)).println();
 		} else {
-			System.out.println("no such key");
+			out.error("no such key");
 		}
 
-		System.out.println();
+		out.println();
 	}
 
-	private void union(List<String> keys) {
+	private void union(List<String> keys, ResponseWriter out) {
 		//Displays set union of values in keys
 		//@param keys the keys of the entries
+		//@param out where the response is written
 		//We again guarantee at least 2 keys with unknown validity
 
-		List<Entry> unionEntries = new ArrayList<Entry>();
+		List<Entry> unionEntries = lookup(keys);
 
-		for(String nextKey: keys){
-			for(Entry nextEntry: entries){
-				if(nextEntry.getKey().equals(nextKey)){
-					unionEntries.add(nextEntry);
-					break;
-				}
-			}
-		}
-
-		if(unionEntries.size() == keys.size()){
+		if(unionEntries != null){
 			//All the keys are valid
-			System.out.println(Entry.union(unionEntries).toString().replace(",", ""));
+			out.values(Entry.union(unionEntries)).println();
 		} else {
-			System.out.println("no such key");
+			out.error("no such key");
 		}
 
-		System.out.println();
+		out.println();
 	}
 
-	private void cartprod(List<String> keys) {
+	private void cartprod(List<String> keys, ResponseWriter out) {
 		//Displays cartesian product of sets
 		//@param keys the keys of the entries
+		//@param out where the response is written
 		//We guarantee at least 2 once more
 
-		List<Entry> cartesianEntries = new ArrayList<Entry>();
+		List<Entry> cartesianEntries = lookup(keys);
+
+		if(cartesianEntries != null){
+			//Tuples are streamed straight to the output as they are generated rather than built into one String
+			Iterator<int[]> tuples = Entry.cartprod(cartesianEntries);
 
-		for(String nextKey:keys){
-			for(Entry nextEntry: entries){
-				if(nextEntry.getKey().equals(nextKey)){
-					cartesianEntries.add(nextEntry);
-					break;
+			if(!tuples.hasNext()){
+				//Case for cartesian product of empty set
+				out.println("[ [] ]");
+			} else {
+				out.print('[');
+				//Stop generating once the output has failed, e.g. the client disconnected, rather than run on holding the locks
+				while(tuples.hasNext() && !out.checkError()){
+					out.print(' ').values(tuples.next());
 				}
+				out.println(" ]");
 			}
+		} else {
+			out.error("no such key");
 		}
 
-		if(cartesianEntries.size() == keys.size()){
-			String cartesianProduct = Entry.cartprod(cartesianEntries).toString().replace(",", "");
-			cartesianProduct = cartesianProduct.replace("[[", "[ [");
-			cartesianProduct = cartesianProduct.replace("]]" , "] ]");
-			if(cartesianProduct == "[]"){
-				//Case for cartesian product of empty set
-				System.out.println("[ [] ]");
-			} else System.out.println(cartesianProduct);
+		out.println();
+	}
+
+	private void cartcount(List<String> keys, ResponseWriter out) {
+		//Displays the number of tuples in the cartesian product without generating them
+		//@param keys the keys of the entries
+		//@param out where the response is written
+
+		List<Entry> cartesianEntries = lookup(keys);
+
+		if(cartesianEntries != null){
+			out.println(Entry.cartcount(cartesianEntries).toString());
 		} else {
-			System.out.println("no such key");
+			out.error("no such key");
 		}
 
-		System.out.println();
+		out.println();
 	}
 
 	private static final String HELP =
@@ -699,6 +1038,7 @@ public class CrunchDB {
 		"PURGE <key>  deletes entry from current state and snapshots\n"+
 		"\n"+
 		"SET <key> <value ...>     sets entry values\n"+
+		"SET <key> AS BITMAP|LIST [<value ...>]  stores entry values as a compressed set or a list\n"+
 		"PUSH <key> <value ...>    pushes values to the front\n"+
 		"APPEND <key> <value ...>  appends values to the back\n"+
 		"\n"+
@@ -712,12 +1052,16 @@ public class CrunchDB {
 		"SNAPSHOT       saves the current state as a snapshot\n"+
 		"\n"+
 		"ARCHIVE <id> <filename> saves snapshot to file\n"+
+		"ARCHIVE <id> <filename> BINARY saves snapshot to file in binary\n"+
+		"ARCHIVE <id> <filename> [BINARY] ASYNC saves snapshot to file in the background\n"+
+		"ARCHIVE STATUS displays progress of background archives\n"+
 		"RESTORE <filename> loads snapshot from file\n"+
 		"\n"+
 		"MIN <key>  displays minimum value\n"+
 		"MAX <key>  displays maximum value\n"+
 		"SUM <key>  displays sum of values\n"+
 		"LEN <key>  displays number of values\n"+
+		"MEMORY <key>  displays how entry values are stored and their size\n"+
 		"\n"+
 		"REV <key>   reverses order of values\n"+
 		"UNIQ <key>  removes repeated adjacent values\n"+
@@ -726,174 +1070,271 @@ public class CrunchDB {
 		"DIFF <key> <key ...>   displays set difference of values in keys\n"+
 		"INTER <key> <key ...>  displays set intersection of values in keys\n"+
 		"UNION <key> <key ...>  displays set union of values in keys\n"+
-		"CARTPROD <key> <key ...>  displays set union of values in keys";
+		"CARTPROD <key> <key ...>  displays set union of values in keys\n"+
+		"CARTCOUNT <key> <key ...>  displays number of tuples in cartesian product of keys\n"+
+		"\n"+
+		"MULTI    starts queueing commands as a transaction\n"+
+		"EXEC     runs the queued commands together\n"+
+		"DISCARD  drops the queued commands\n"+
+		"\n"+
+		"EXPIRE <key> <ms>           deletes entry after ms\n"+
+		"EXPIREAT <key> <timestamp>  deletes entry at a unix time in ms\n"+
+		"TTL <key>                   displays ms until entry is deleted, -1 if never\n"+
+		"\n"+
+		"INFO STATS   displays calls, errors, output and latency of each command\n"+
+		"STATS RESET  clears command statistics";
+
+	public static void bye(ResponseWriter out) {
+		out.println("bye");
+	}
+
+	public static void help(ResponseWriter out) {
+		out.println(HELP);
+		out.println();
+	}
+
+	private static final double[] PERCENTILES = {0.5, 0.99, 0.999};
+
+	public static void infoStats(CommandRegistry commands, ResponseWriter out) {
+		//Displays the calls, errors, output and latency percentiles of each command that has run
+		//Latencies are in microseconds and include waiting for locks
+		//@param commands the registry whose statistics are shown
+		//@param out where the response is written
 
-	public static void bye() {
-		System.out.println("bye");
+		boolean any = false;
+		for(Map.Entry<String, LatencyStats> next: commands.getStats().entrySet()){
+			LatencyStats stats = next.getValue();
+			long calls = stats.calls();
+			if(calls == 0) continue;
+
+			if(!any){
+				out.println(String.format(Locale.ROOT, "%-14s %8s %8s %10s %9s %9s %9s %9s", "command", "calls", "errors", "bytes", "p50 us", "p99 us", "p999 us", "max us"));
+				any = true;
+			}
+			long[] latencies = stats.percentiles(PERCENTILES);
+			out.println(String.format(Locale.ROOT, "%-14s %8d %8d %10d %9.1f %9.1f %9.1f %9.1f", next.getKey(), calls, stats.errors(), stats.written(),
+				latencies[0]/1000.0, latencies[1]/1000.0, latencies[2]/1000.0, stats.max()/1000.0));
+		}
+
+		if(!any){
+			out.println("no commands run");
+		}
+		out.println();
+	}
+
+	public static void resetStats(CommandRegistry commands, ResponseWriter out) {
+		//Clears the statistics of every command
+		//@param commands the registry whose statistics are cleared
+		//@param out where the response is written
+
+		for(LatencyStats stats: commands.getStats().values()){
+			stats.reset();
+		}
+
+		out.println("ok");
+		out.println();
+	}
+
+	private static final CommandRegistry COMMANDS = commands();
+
+	public static CommandRegistry getCommands() {
+		//Getter method for the commands main runs, e.g. for a benchmark that runs lines without main
+		//@return the registry
+
+		return COMMANDS;
+	}
+
+	private static String expiryRecord(String key, long deadline, long now) {
+		//Writes the log record for a deadline - NB replay doesn't run the clock, so one that has passed is logged as a DEL
+		//@param key the key of the entry
+		//@param deadline when it is deleted, in ms since the epoch
+		//@param now the time the command runs at
+		//@return the record
+
+		return deadline <= now ? "DEL " + key : "EXPIREAT " + key + " " + deadline;
 	}
 
-	public static void help() {
-		System.out.println(HELP);
+	private static CommandRegistry commands() {
+		//Declares every command by its usage - NB forms of the same verb are tried in order
+		//A new command only needs to be registered here, main never changes
+		//@return the registry
+
+		CommandRegistry registry = new CommandRegistry();
+
+		registry.register("BYE", (db, args, out) -> bye(out)).exits().lockFree();
+		registry.register("HELP", (db, args, out) -> help(out)).lockFree();
+		//Statistics belong to the registry rather than the database, and running these mustn't change them
+		registry.register("INFO STATS", (db, args, out) -> infoStats(registry, out)).lockFree().untimed();
+		registry.register("STATS RESET", (db, args, out) -> resetStats(registry, out)).lockFree().untimed();
+
+		registry.register("LIST KEYS", (db, args, out) -> db.listKeys(out));
+		registry.register("LIST ENTRIES", (db, args, out) -> db.listEntries(out));
+		registry.register("LIST SNAPSHOTS", (db, args, out) -> db.listSnapshot(out));
+
+		registry.register("GET <key>", (db, args, out) -> db.get(args.get(0), out));
+		registry.register("DEL <key>", (db, args, out) -> db.del(args.get(0), out)).logged();
+		//PURGE names a key but also changes every snapshot, so nothing else may run alongside it
+		registry.register("PURGE <key>", (db, args, out) -> db.purge(args.get(0), out)).logged().exclusive();
+
+		registry.register("SET <key> AS BITMAP|LIST [<value ...>]", (db, args, out) -> db.setAs(args.get(0), args.get(2).equalsIgnoreCase("BITMAP"), args.getInts(3), args.getSequence(), out)).logged();
+		registry.register("SET <key> <value ...>", (db, args, out) -> db.set(args.get(0), args.getInts(1), args.getSequence(), out)).logged();
+		registry.register("PUSH <key> <value ...>", (db, args, out) -> db.push(args.get(0), args.getInts(1), out)).logged();
+		registry.register("APPEND <key> <value ...>", (db, args, out) -> db.append(args.get(0), args.getInts(1), out)).logged();
+
+		//NB we pass an index which is 1-indexed - our entry functions deal with that
+		registry.register("PICK <key> <index>", (db, args, out) -> db.pick(args.get(0), args.getInt(1), out));
+		registry.register("PLUCK <key> <index>", (db, args, out) -> db.pluck(args.get(0), args.getInt(1), out)).logged();
+		registry.register("POP <key>", (db, args, out) -> db.pop(args.get(0), out)).logged();
+
+		//Deadlines are logged as absolute times, and one that has passed as the DEL it causes
+		registry.register("EXPIRE <key> <ms>", (db, args, out) -> db.expireAt(args.get(0), deadline(args.getTime(), args.getLong(1)), args.getTime(), out))
+			.loggedAs((db, args, now) -> expiryRecord(args.get(0), deadline(now, args.getLong(1)), now));
+		registry.register("EXPIREAT <key> <timestamp>", (db, args, out) -> db.expireAt(args.get(0), args.getLong(1), args.getTime(), out))
+			.loggedAs((db, args, now) -> expiryRecord(args.get(0), args.getLong(1), now));
+		registry.register("TTL <key>", (db, args, out) -> db.ttl(args.get(0), args.getTime(), out));
+
+		//A snapshot being archived can't be removed, and the refused command isn't logged since replay has no archives
+		registry.register("DROP <id>", (db, args, out) -> db.drop(args.getInt(0), out))
+			.loggedAs((db, args, now) -> db.isPinned(args.getInt(0)) ? null : args.getLine());
+		registry.register("ROLLBACK <id>", (db, args, out) -> db.rollback(args.getInt(0), out))
+			.loggedAs((db, args, now) -> db.isPinnedAfter(args.getInt(0)) ? null : args.getLine());
+		registry.register("CHECKOUT <id>", (db, args, out) -> db.checkout(args.getInt(0), out)).logged();
+		registry.register("SNAPSHOT", (db, args, out) -> db.snapshot(out)).logged();
+
+		registry.register("ARCHIVE <id> <filename>", (db, args, out) -> db.archive(args.getInt(0), args.get(1), false, out));
+		registry.register("ARCHIVE <id> <filename> BINARY", (db, args, out) -> db.archive(args.getInt(0), args.get(1), true, out));
+		registry.register("ARCHIVE <id> <filename> ASYNC", (db, args, out) -> db.archiveAsync(args.getInt(0), args.get(1), false, out));
+		registry.register("ARCHIVE <id> <filename> BINARY ASYNC", (db, args, out) -> db.archiveAsync(args.getInt(0), args.get(1), true, out));
+		registry.register("ARCHIVE STATUS", (db, args, out) -> db.archiveStatus(out));
+		registry.register("RESTORE <filename>", (db, args, out) -> db.restore(args.get(0), out)).rewritesLog();
+
+		registry.register("MIN <key>", (db, args, out) -> db.min(args.get(0), out));
+		registry.register("MAX <key>", (db, args, out) -> db.max(args.get(0), out));
+		registry.register("SUM <key>", (db, args, out) -> db.sum(args.get(0), out));
+		registry.register("LEN <key>", (db, args, out) -> db.len(args.get(0), out));
+		registry.register("MEMORY <key>", (db, args, out) -> db.memory(args.get(0), out));
+
+		registry.register("REV <key>", (db, args, out) -> db.rev(args.get(0), out)).logged();
+		registry.register("UNIQ <key>", (db, args, out) -> db.uniq(args.get(0), out)).logged();
+		registry.register("SORT <key>", (db, args, out) -> db.sort(args.get(0), out)).logged();
+
+		//At least two keys are guaranteed here, though they may not exist
+		registry.register("DIFF <key> <key ...>", (db, args, out) -> db.diff(args.getAll(0), out));
+		registry.register("INTER <key> <key ...>", (db, args, out) -> db.inter(args.getAll(0), out));
+		registry.register("UNION <key> <key ...>", (db, args, out) -> db.union(args.getAll(0), out));
+		registry.register("CARTPROD <key> <key ...>", (db, args, out) -> db.cartprod(args.getAll(0), out));
+		registry.register("CARTCOUNT <key> <key ...>", (db, args, out) -> db.cartcount(args.getAll(0), out));
+
+		return registry;
 	}
 
 /*******************************************************MAIN METHOD*******************************************************/
 /**************************************************SORRY MANUAL MARKER :(**************************************************/
 
 	public static void main(String[] args) {
+		//Options: --batch reads a script without prompts and writes output in large blocks
+		//--errors-only is a batch that only writes errors, each with its line number
+		//--wal <file> logs every change to file and replays it at startup
+		//--fsync always|os|<ms> says when the log is forced to disk - NB every 1000ms by default
+		//--port <port> serves clients on a local port instead of reading System.in, each on its own thread
+		//--selector serves them from one thread instead, so their commands never run at the same time
+		boolean batch = false;
+		boolean errorsOnly = false;
+		String walFile = null;
+		long syncInterval = 1000;
+		int port = -1;
+		boolean selector = false;
+
+		try{
+			for(int i = 0; i < args.length; i++){
+				if(args[i].equals("--batch")){
+					batch = true;
+				} else if(args[i].equals("--errors-only")){
+					batch = true;
+					errorsOnly = true;
+				} else if(args[i].equals("--wal") && i+1 < args.length){
+					walFile = args[++i];
+				} else if(args[i].equals("--port") && i+1 < args.length){
+					port = Integer.parseInt(args[++i]);
+					if(port < 0 || port > 65535) throw new IllegalArgumentException();
+				} else if(args[i].equals("--selector")){
+					selector = true;
+				} else if(args[i].equals("--fsync") && i+1 < args.length){
+					String policy = args[++i];
+					if(policy.equalsIgnoreCase("always")) syncInterval = CommandLog.SYNC_ALWAYS;
+					else if(policy.equalsIgnoreCase("os")) syncInterval = CommandLog.SYNC_OS;
+					else if(Long.parseLong(policy) > 0) syncInterval = Long.parseLong(policy);
+					else throw new IllegalArgumentException();
+				} else {
+					throw new IllegalArgumentException();
+				}
+			}
+		} catch(IllegalArgumentException e){
+			System.err.println("usage: java CrunchDB [--batch] [--errors-only] [--wal <file> [--fsync always|os|<ms>]] [--port <port> [--selector]]");
+			System.exit(2);
+		}
+
+		//Someone typing at a console sees each response straight away, piped input is written out in large pieces
+		boolean interactive = !batch && System.console() != null;
+		ResponseWriter out = new ResponseWriter(new OutputStreamWriter(System.out), interactive, errorsOnly);
 		CrunchDB program = new CrunchDB();
-		Scanner scan = new Scanner(System.in);
-		String errorMessage = "Incorrect usage, see HELP for command list\n";
-
-		while(scan.hasNextLine()){
-			System.out.printf("> ");
-			String nextLine = scan.nextLine();
-			String[] splitLine = nextLine.split(" ");
-			splitLine[0] = splitLine[0].toUpperCase();
-
-			//We initially seperate cases by length to deal with cases like "GET a a" where too few/many arguments are specified
-			if(splitLine.length == 1){
-				if(splitLine[0].equals("BYE")){
-					CrunchDB.bye();
-					return;
-				} else if(splitLine[0].equals("HELP")){
-					CrunchDB.help();
-					System.out.println();
-				} else if(splitLine[0].equals("SNAPSHOT")){
-					program.snapshot();
-				} else{
-					//Error handling for incorrect input
-					System.out.println(errorMessage);
+		Session session = new Session(program, COMMANDS, out);
+		CommandLog log = null;
+
+		try{
+			if(walFile != null){
+				//Replay what was logged before taking new commands - responses are thrown away
+				log = new CommandLog(walFile, syncInterval);
+				Session replay = new Session(program, COMMANDS, new ResponseWriter(Writer.nullWriter(), false));
+				replay.setReplaying(true);
+				log.replay(replay);
+				if(replay.inTransaction()){
+					//The log ends part way through a transaction written when we crashed - close it so later records aren't queued
+					log.append("DISCARD");
 				}
-			} else if(splitLine.length == 2){
-				if(splitLine[0].equals("LIST")){
-					splitLine[1] = splitLine[1].toUpperCase();
-
-					if(splitLine[1].equals("KEYS")){
-						program.listKeys();
-					} else if(splitLine[1].equals("ENTRIES")){
-						program.listEntries();
-					} else if(splitLine[1].equals("SNAPSHOTS")){
-						program.listSnapshot();
-					} else {
-						System.out.println(errorMessage);
-					}
-
-				} else if(splitLine[0].equals("GET")){
-					program.get(splitLine[1]);
-				} else if(splitLine[0].equals("DEL")){
-					program.del(splitLine[1]);
-				} else if(splitLine[0].equals("PURGE")){
-					program.purge(splitLine[1]);
-				} else if(splitLine[0].equals("POP")){
-					program.pop(splitLine[1]);
-				} else if(splitLine[0].equals("DROP")){
-					//Error handling done here as an integer is passed to the function
-					try{
-						program.drop(Integer.parseInt(splitLine[1]));
-					} catch(IllegalArgumentException e){
-						System.out.println(errorMessage);
-					}
-				} else if(splitLine[0].equals("ROLLBACK")){
-					//Error handling done here as an integer is passed to the function
-					try{
-						program.rollback(Integer.parseInt(splitLine[1]));
-					} catch(IllegalArgumentException e){
-						System.out.println(errorMessage);
-					}
-				} else if(splitLine[0].equals("CHECKOUT")){
-					//Error handling done here as an integer is passed to the function
-					try{
-						program.checkout(Integer.parseInt(splitLine[1]));
-					} catch(IllegalArgumentException e){
-						System.out.println(errorMessage);
-					}
-				} else if(splitLine[0].equals("RESTORE")){
-					program.restore(splitLine[1]);
-				} else if(splitLine[0].equals("MIN")){
-					program.min(splitLine[1]);
-				} else if(splitLine[0].equals("MAX")){
-					program.max(splitLine[1]);
-				} else if(splitLine[0].equals("SUM")){
-					program.sum(splitLine[1]);
-				} else if(splitLine[0].equals("LEN")){
-					program.len(splitLine[1]);
-				} else if(splitLine[0].equals("REV")){
-					program.rev(splitLine[1]);
-				} else if(splitLine[0].equals("UNIQ")){
-					program.uniq(splitLine[1]);
-				} else if(splitLine[0].equals("SORT")){
-					program.sort(splitLine[1]);
-				} else {
-					System.out.println(errorMessage);
+				session.setLog(log);
+				out.setBeforeWrite(log::commit);
+			}
+		} catch(IOException e){
+			System.err.println("can't open command log " + walFile + ": " + e.getMessage());
+			System.exit(1);
+		}
+
+		if(port != -1){
+			try{
+				if(selector) new Server(program, COMMANDS, log).run(port);
+				else new BlockingServer(program, COMMANDS, log).run(port);
+			} catch(IOException e){
+				System.err.println("can't listen on port " + port + ": " + e.getMessage());
+				System.exit(1);
+			}
+			return;
+		}
+
+		BufferedReader input = new BufferedReader(new InputStreamReader(System.in), 1 << 16);
+
+		try{
+			String nextLine;
+			long lineNumber = 0;
+			while((nextLine = input.readLine()) != null){
+				out.startCommand(++lineNumber);
+				if(!batch){
+					out.print("> ");
 				}
-			} else {
-				if(splitLine[0].equals("SET") || splitLine[0].equals("PUSH") || splitLine[0].equals("APPEND")){
-					List<Integer> values = new ArrayList<Integer>();
-					for(int i = 2; i < splitLine.length; i++){
-						try{
-							values.add(Integer.parseInt(splitLine[i]));
-						} catch(NumberFormatException e){
-							break;
-						}
-					}
-
-					if(values.size() == splitLine.length - 2){ //No NumberFormatException happened if this condition is true
-						if(splitLine[0].equals("SET")){
-							program.set(splitLine[1], values);
-						} else if(splitLine[0].equals("PUSH")){
-							program.push(splitLine[1], values);
-						} else if(splitLine[0].equals("APPEND")){
-							program.append(splitLine[1], values);
-						}
-					} else {
-						System.out.println(errorMessage);
-					}
-
-				} else if(splitLine[0].equals("PICK") || splitLine[0].equals("PLUCK")){
-					//NB we pass an index which is 1-indexed - our entry functions deal with that
-
-					try{
-						int index = Integer.parseInt(splitLine[2]);
-						if(splitLine[0].equals("PICK") && splitLine.length == 3){
-							program.pick(splitLine[1], index);
-						} else if(splitLine[0].equals("PLUCK") && splitLine.length == 3){
-							program.pluck(splitLine[1], index);
-						} else{
-							System.out.println(errorMessage);
-						}
-					} catch(NumberFormatException e){
-						System.out.println(errorMessage);
-					}
-				} else if(splitLine[0].equals("ARCHIVE")){
-					try{
-						int index = Integer.parseInt(splitLine[1]);
-						if(splitLine.length == 3){
-							program.archive(index, splitLine[2]);
-						} else {
-							System.out.println(errorMessage);
-						}
-					} catch(NumberFormatException e){
-						System.out.println(errorMessage);
-					}
-				} else if(splitLine[0].equals("DIFF") || splitLine[0].equals("INTER") || splitLine[0].equals("UNION") || splitLine[0].equals("CARTPROD")){
-					List<String> keys = new ArrayList<String>();
-					for(int i = 1; i < splitLine.length; i++){
-						keys.add(splitLine[i]);
-					}
-
-					if(splitLine[0].equals("DIFF")){
-						program.diff(keys);
-					} else if(splitLine[0].equals("INTER")){
-						program.inter(keys);
-					} else if(splitLine[0].equals("UNION")){
-						program.union(keys);
-					} else if(splitLine[0].equals("CARTPROD")){
-						program.cartprod(keys);
-					}
-				} else {
-					System.out.println(errorMessage);
+				boolean running = session.execute(nextLine);
+				out.endCommand();
+				if(!running){
+					return;
 				}
 			}
+		} catch(IOException e){
+			System.err.println("error reading input: " + e.getMessage());
+		} finally {
+			out.flush();
+			program.finishArchives();
+			if(log != null){
+				log.close();
+			}
 		}
 	}
 }
@@ -1,9 +1,10 @@
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Map;
-import java.util.HashMap;
-import java.util.Collections;
+import java.util.Iterator;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.NoSuchElementException;
+import java.math.BigInteger;
 
 /**
  * Entry deals with storing the key and value associated with entries in the
@@ -14,13 +15,95 @@ import java.util.NoSuchElementException;
 
 public class Entry {
 	private String key;
-	private List<Integer> values;
+	private IntList values;
+	private CompressedBitmap bitmap; //Set when the values are stored as a compressed set instead - NB values is null then
+	private int generation; //The database generation that owns this entry - NB older generations are shared with snapshots
+	private long order; //When the key was first added, for listing in insertion order - NB kept by copies and replacements
+
+	//Running aggregates so MIN/MAX/SUM don't rescan the values
+	//total is always up to date, min/max are only trusted while boundsValid
+	private long total;
+	private int min;
+	private int max;
+	private boolean boundsValid;
 
 	public Entry(String key, List<Integer> values) {
 		//Constructor method
 		
+		this(key, values, 0);
+	}
+
+	public Entry(String key, List<Integer> values, int generation) {
+		//Constructor method
+		//@param generation the database generation creating this entry
+
+		this(key, IntList.of(values), generation);
+		summarise();
+	}
+
+	public Entry(String key, IntList values) {
+		//Constructor method - NB takes values as is
+		//@param values the values - NB the entry owns them from now on
+
+		this(key, values, 0);
+		summarise();
+	}
+
+	private Entry(String key, IntList values, int generation) {
+		//Constructor method used for copies - NB takes values as is
+
 		this.key = key;
 		this.values = values;
+		this.generation = generation;
+	}
+
+	public Entry copy(int generation) {
+		//Copies the entry so the copy can be changed without affecting this one
+		//@param generation the database generation that will own the copy
+		//@return the copy
+
+		Entry copy = new Entry(key, values == null ? null : values.copy(), generation);
+		copy.bitmap = bitmap == null ? null : bitmap.copy();
+		copy.total = total;
+		copy.min = min;
+		copy.max = max;
+		copy.boundsValid = boundsValid;
+		copy.order = order;
+
+		return copy;
+	}
+
+	public int getGeneration(){
+		//Getter method for generation
+		//@return the generation that owns this entry
+
+		return generation;
+	}
+
+	public long getOrder(){
+		//Getter method for order
+		//@return when the key was first added - NB only compared with other entries
+
+		return order;
+	}
+
+	public void setOrder(long order){
+		//Setter method for order
+		//@param order when the key was first added
+
+		this.order = order;
+	}
+
+	public static List<Entry> inOrder(Collection<Entry> entries) {
+		//Sorts entries into the order their keys were added, oldest first
+		//The maps holding entries are hashed for concurrent access, so this order is kept in each entry instead
+		//@param entries the entries
+		//@return a new list
+
+		List<Entry> ordered = new ArrayList<Entry>(entries);
+		ordered.sort(Comparator.comparingLong(Entry::getOrder));
+
+		return ordered;
 	}
 
 	public String getKey(){
@@ -32,47 +115,127 @@ public class Entry {
 
 	public List<Integer> getValues(){
 		//Getter method for the values
-		//@return the list of values
+		//@return read-only view of the values - NB boxes on every read, use the Entry methods for bulk work
 
-		return values;
+		return list().asList();
 	}
 
-	public String get() {
-		// Formats the Entry for Display - NB NO NEWLINE (Automarker doesn'l like it :O)
-		// @return = String of values
+	public IntList getIntValues(){
+		//Getter method for the values without boxing
+		//@return the values - NB don't change them, they may be shared with snapshots
 
-		String returnValues = "["; //stores the string we'll return
-		for(int i = 0; i < values.size(); i++){
-			returnValues += Integer.toString(values.get(i));;
-			if(i != values.size()-1){
-				returnValues += " ";
-			}
+		return list();
+	}
+
+	public boolean isBitmap(){
+		//Checks how the values are stored
+		//@return true if the values are a compressed bitmap
+
+		return bitmap != null;
+	}
+
+	public void toBitmap() {
+		//Stores the values as a compressed bitmap - NB a bitmap is a set so order and repeats are lost
+
+		if(bitmap == null){
+			bitmap = CompressedBitmap.of(values);
+			values = null;
+			summarise();
+		}
+	}
+
+	public void toList() {
+		//Stores the values as a list again, in ascending order
+
+		if(bitmap != null){
+			values = bitmap.toIntList();
+			bitmap = null;
+		}
+	}
+
+	public String memory() {
+		//Describes how the values are stored and roughly how much heap they use
+		//@return the description
+
+		if(bitmap != null){
+			return "bitmap " + bitmap.sizeInBytes() + " bytes (" + bitmap.describe() + ")";
 		}
-		returnValues += "]";
 
-		return returnValues;
+		return "list " + values.sizeInBytes() + " bytes";
+	}
+
+	private IntList list() {
+		//The values as an IntList, expanding a bitmap if needed
+		//@return the values
+
+		return bitmap != null ? bitmap.toIntList() : values;
+	}
+
+	private int size() {
+		//Counts the values however they are stored
+		//@return the number of values
+
+		return bitmap != null ? bitmap.cardinality() : values.size();
+	}
+
+	public void get(ResponseWriter out) {
+		// Formats the Entry for Display - NB NO NEWLINE (Automarker doesn'l like it :O)
+		// @param out where the values are written, e.g. [1 2 3]
+
+		if(bitmap != null){
+			out.values(bitmap.toArray());
+		} else {
+			out.values(values);
+		}
 	}
 
 	public void set(List<Integer> values) {
 		// Sets the value of this Entry - NB overwrites
 		// @param values the values to set
 
-		this.values = values;
+		this.values = IntList.of(values);
+		this.bitmap = null;
+		summarise();
 	}
 
 	public void push(List<Integer> values) {
 		//Adds the values to the start - NB opposite order
 		//@param values the values to add
 
-		Collections.reverse(values);
-		this.values.addAll(0, values);
+		if(bitmap != null){
+			addToBitmap(values);
+			return;
+		}
+
+		for(int next: values){
+			this.values.addFirst(next);
+			added(next);
+		}
 	}
 
 	public void append(List<Integer> values) {
 		//Adds the values to the end
 		//@param values the values to add
 
+		if(bitmap != null){
+			addToBitmap(values);
+			return;
+		}
+
 		this.values.addAll(values);
+		for(int next: values) added(next);
+	}
+
+	private void addToBitmap(List<Integer> values) {
+		//Adds values to a bitmap entry - as it is a set, order doesn't matter and repeats are skipped
+		//@param values the values to add
+
+		for(int next: values){
+			if(!bitmap.contains(next)){
+				bitmap.add(next);
+				added(next);
+			}
+		}
 	}
 
 	public Integer pick(int index) {
@@ -80,13 +243,15 @@ public class Entry {
 		//@param index the index
 		//@return the value at the index - NB null if index doesn't exist
 
-
 		//As entries are 1-indexed we will subtract one from given param
 		index--;
 		try{
+			if(bitmap != null){
+				if(index < 0 || index >= bitmap.cardinality()) throw new IndexOutOfBoundsException();
+				return bitmap.select(index);
+			}
 			return this.values.get(index);
 		} catch (IndexOutOfBoundsException e){
-			System.out.println("index out of range");
 			return null;
 		}
 	}
@@ -99,11 +264,17 @@ public class Entry {
 		//As entries are 1-indexed we will subtract one from given param
 		index--;
 		try{
-			int valueAtIndex = values.get(index);
-			values.remove(index);
+			int valueAtIndex;
+			if(bitmap != null){
+				if(index < 0 || index >= bitmap.cardinality()) throw new IndexOutOfBoundsException();
+				valueAtIndex = bitmap.select(index);
+				bitmap.remove(valueAtIndex);
+			} else {
+				valueAtIndex = values.removeAt(index);
+			}
+			removed(valueAtIndex);
 			return valueAtIndex;
 		} catch (IndexOutOfBoundsException e){
-			System.out.println("index out of range");
 			return null;
 		}
 	}
@@ -113,49 +284,50 @@ public class Entry {
 		//@return the first value - NB null if no elements
 
 		try{
-			int valueAtIndex = values.get(0);
-			values.remove(0);
+			int valueAtIndex;
+			if(bitmap != null){
+				if(bitmap.cardinality() == 0) throw new IndexOutOfBoundsException();
+				valueAtIndex = bitmap.first();
+				bitmap.remove(valueAtIndex);
+			} else {
+				valueAtIndex = values.removeFirst();
+			}
+			removed(valueAtIndex);
 			return valueAtIndex;
 		} catch (IndexOutOfBoundsException e){
-			System.out.println("nil");
 			return null;
 		}
-
 	}
 
 	public Integer min() {
 		//Finds the minimum value
 		//@return the minimum value - NB null if no min
 
-		try{
-			return Collections.min(values);
-		} catch (NoSuchElementException e){
-			System.out.println("nil");
+		if(size() == 0){
 			return null;
 		}
+
+		if(!boundsValid) summarise();
+		return min;
 	}
 
 	public Integer max() {
 		//Finds the maximum value
 		//@return the max value - NB null if no max
 
-		try{
-			return Collections.max(values);
-		} catch (NoSuchElementException e){
-			System.out.println("nil");
+		if(size() == 0){
 			return null;
 		}
+
+		if(!boundsValid) summarise();
+		return max;
 	}
 
-	public Integer sum() {
-		//Computes the sum of all values
+	public Long sum() {
+		//Computes the sum of all values - NB 64 bit so large totals don't overflow
 		//@return the sum - NB null if no sum exists
 
-		int total = 0;
-		for(int next: values) total += next;
-
-		if(values.size() == 0) {
-			System.out.println("nil");
+		if(size() == 0) {
 			return null;
 		}
 
@@ -166,20 +338,24 @@ public class Entry {
 		//Finds the number of values
 		//@return the number of values;
 
-		return values.size();
+		return size();
 	}
 
 	public void rev() {
 		//Reverses the order of the values
+		//A bitmap is always ascending so it has to become a list first
 
-		Collections.reverse(values);
+		toList();
+		values.reverse();
 	}
 
 	public void uniq() {
 		//Removes adjacent duplicates
 		//~O(N -> NlogN) Solution
 
-		List<Integer> temp = new ArrayList<Integer>();
+		if(bitmap != null) return; //Sets have no repeats
+
+		IntList temp = new IntList(values.size());
 
 		for(int i = 0; i < values.size(); i++){
 			temp.add(values.get(i));
@@ -191,175 +367,209 @@ public class Entry {
 		}
 
 		values = temp;
+		summarise(); //Only repeats were removed so min/max hold, but the total changes
 	}
 
 	public void sort() {
 		//Sorts the values in ASCENDING order
 
-		Collections.sort(values);
+		if(bitmap != null) return; //Sets are already ascending
+
+		values.sort();
 	}
 
-	public static List<Integer> diff(List<Entry> entries) {
-		//Computes the set difference of the entries
-		//@param entries the list of entries
-		//@return the difference
+	private void summarise() {
+		//Recomputes total, min and max with a single pass over the values
 
-		List<Integer> differences = new ArrayList<Integer>();
-		HashMap <Integer, Integer> map = new HashMap<Integer, Integer>();
-		HashMap <Integer, Boolean> duplicate = new HashMap<Integer, Boolean>();
-		//We'll have a hashmap where each entries value is a key and the value is the amount of times we've encountered that value
-		//At the end, all keys with value 1 in the hashmap are the unique entries
-		//We have the hashmap duplicate to ensure entries with duplicate values are not counted more than once (as they are in the same set)
+		if(bitmap != null){
+			total = bitmap.sum();
+			min = bitmap.cardinality() == 0 ? Integer.MAX_VALUE : bitmap.first();
+			max = bitmap.cardinality() == 0 ? Integer.MIN_VALUE : bitmap.last();
+			boundsValid = true;
+			return;
+		}
 
-		for(Entry nextEntry: entries){
-			for(int nextValue: nextEntry.values){
-				if(map.containsKey(nextValue) && !duplicate.containsKey(nextValue)){
-					//We've encountered the value before
-					map.put(nextValue, map.get(nextValue)+1);
-				} else if(!duplicate.containsKey(nextValue)) {
-					//Adding value to the hashmap if we haven't encountered
-					map.put(nextValue, 1);
-				}
+		total = 0;
+		min = Integer.MAX_VALUE;
+		max = Integer.MIN_VALUE;
 
-				if(!duplicate.containsKey(nextValue)){
-					duplicate.put(nextValue, true);
-				}
-			}
-			duplicate.clear(); //Clearing the duplicate hashmap for the next entry
+		for(int i = 0; i < values.size(); i++){
+			int next = values.get(i);
+			total += next;
+			if(next < min) min = next;
+			if(next > max) max = next;
 		}
 
-		for(int nextKey: map.keySet()){
-			if(map.get(nextKey) == 1){
-				differences.add(nextKey);
-			}
-		}
+		boundsValid = true;
+	}
+
+	private void added(int value) {
+		//Keeps the aggregates up to date after a value is added
+		//@param value the value added
 
-		Collections.sort(differences);
-		return differences;
+		total += value;
+		if(boundsValid){
+			if(value < min) min = value;
+			if(value > max) max = value;
+		}
 	}
 
-	public static List<Integer> inter(List<Entry> entries) {
-		//Computes the set intersection of the entries A n B
-		//@param entries list of entries
-		//@return the resulting values
+	private void removed(int value) {
+		//Keeps the aggregates up to date after a value is removed
+		//If we removed the min or max we don't know the next one, so we leave it to be recomputed when asked
+		//@param value the value removed
 
-		List<Integer> intersection = new ArrayList<Integer>();
-		HashMap <Integer, Integer> map = new HashMap<Integer, Integer>();
-		HashMap <Integer, Boolean> duplicate = new HashMap<Integer, Boolean>();
-		//Similar to Diff except we instead check that the value of keys is equal to entries.size() (in all entries)
-		//We have the hashmap duplicate to ensure entries with duplicate values are not counted more than once (as they are in the same set)
+		total -= value;
+		if(value == min || value == max){
+			boundsValid = false;
+		}
+	}
 
-		for(Entry nextEntry: entries){
-			for(int nextValue: nextEntry.values){
-				if(map.containsKey(nextValue) && !duplicate.containsKey(nextValue)){
-					//We've encountered the value before
-					map.put(nextValue, map.get(nextValue)+1);
-				} else if(!duplicate.containsKey(nextValue)) {
-					//Adding value to the hashmap if we haven't encountered
-					map.put(nextValue, 1);
-				}
+	public static int[] diff(List<Entry> entries) {
+		//Computes the set difference of the entries - values found in exactly one entry
+		//@param entries the list of entries
+		//@return the difference in ascending order
 
-				if(!duplicate.containsKey(nextValue)){
-					duplicate.put(nextValue, true);
-				}
-			}
-			duplicate.clear(); //Clearing the duplicate hashmap for the next entry
+		if(allBitmaps(entries)){
+			return CompressedBitmap.diff(bitmapsOf(entries)).toArray();
 		}
 
-		for(int nextKey: map.keySet()){
-			if(map.get(nextKey) == entries.size()){
-				intersection.add(nextKey);
-			}
+		return IntSets.diff(valuesOf(entries));
+	}
+
+	public static int[] inter(List<Entry> entries) {
+		//Computes the set intersection of the entries A n B
+		//@param entries list of entries
+		//@return the resulting values in ascending order
+
+		if(allBitmaps(entries)){
+			return CompressedBitmap.inter(bitmapsOf(entries)).toArray();
 		}
 
-		Collections.sort(intersection);
-		return intersection;
+		return IntSets.inter(valuesOf(entries));
 	}
 
-	public static List<Integer> union(List<Entry> entries) {
+	public static int[] union(List<Entry> entries) {
 		//Computes the set union of the entries A U B
 		//@param entries list of entries
-		//@return list of resulting values
-
-		List<Integer> union = new ArrayList<Integer>();
+		//@return the resulting values in ascending order
 
-		for(Entry nextEntry: entries){
-			for(int nextValue: nextEntry.values){
-				if(!union.contains(nextValue)){
-					union.add(nextValue);
-				}
-			}
+		if(allBitmaps(entries)){
+			return CompressedBitmap.union(bitmapsOf(entries)).toArray();
 		}
 
-		Collections.sort(union);
-		return union;
+		return IntSets.union(valuesOf(entries));
 	}
 
-	public static List<List<Integer>> cartprod(List<Entry> entries) {
-		//Computes the Cartesian Product of the entries
+	private static IntList[] valuesOf(List<Entry> entries) {
+		//Collects the values of each entry for the set operations
 		//@param entries list of entries
-		//@return the resulting cartesian product in a 2D list
+		//@return the values of each entry in the same order
 
-		List<List<Integer>> cartesian = new ArrayList<List<Integer>>();
+		IntList[] sets = new IntList[entries.size()];
+		for(int i = 0; i < sets.length; i++){
+			sets[i] = entries.get(i).list();
+		}
+
+		return sets;
+	}
 
-		cartesian = generateCartProduct(0, entries);
+	private static boolean allBitmaps(List<Entry> entries) {
+		//Checks whether the set operations can work bitmap to bitmap
+		//@param entries list of entries
+		//@return true if every entry is stored as a bitmap
 
-		//Reversing for the right cartprod
-		for(List<Integer> next: cartesian){
-			Collections.reverse(next);
+		for(Entry nextEntry: entries){
+			if(nextEntry.bitmap == null) return false;
 		}
 
-		return cartesian;
+		return true;
 	}
 
-	public static List<List<Integer>> generateCartProduct(int currentIndex, List<Entry> entries){
-		//Recursive function which returns us a 2D List representing the cartproduct - NB each list in is reversed due to recursion
-		//@param currentIndex The current index we are recursing at (working from 0 -> N-1)
-		//@param entries the list of entries
-		//@return the current 2D list of cartesian products
+	private static List<CompressedBitmap> bitmapsOf(List<Entry> entries) {
+		//Collects the bitmap of each entry for the set operations
+		//@param entries list of entries - NB all stored as bitmaps
+		//@return the bitmaps in the same order
+
+		List<CompressedBitmap> bitmaps = new ArrayList<CompressedBitmap>(entries.size());
+		for(Entry nextEntry: entries) bitmaps.add(nextEntry.bitmap);
+
+		return bitmaps;
+	}
 
-		List<List<Integer>> temp = new ArrayList<List<Integer>>();
-		Entry currentEntry = entries.get(currentIndex);
+	public static Iterator<int[]> cartprod(List<Entry> entries) {
+		//Lazily walks the Cartesian Product of the entries like an odometer - the last entry turns fastest
+		//Only one tuple exists at a time so memory stays constant however big the product is
+		//@param entries list of entries
+		//@return iterator over the tuples - NB the same array is reused for every tuple, copy it to keep it
+
+		final IntList[] sets = new IntList[entries.size()];
+		boolean anyEmpty = false;
+
+		for(int i = 0; i < sets.length; i++){
+			sets[i] = entries.get(i).list();
+			if(sets[i].size() == 0) anyEmpty = true;
+		}
 
-		//Base case when n is the last set, we return that sets value as individual lists
-		if(currentIndex == entries.size()-1){
-			for(int i = 0; i < currentEntry.values.size(); i++){
-				List<Integer> app = new ArrayList<Integer>();
-				app.add(currentEntry.values.get(i));
-				temp.add(app);
+		final boolean empty = anyEmpty;
+
+		return new Iterator<int[]>() {
+			private final int[] indexes = new int[sets.length];
+			private final int[] tuple = new int[sets.length];
+			private boolean more = !empty;
+
+			public boolean hasNext() {
+				return more;
 			}
-			return temp;
-		} else{
-			//Recursive relation, we get the cartprod of the next index (closer towards numsets) and get the new cartprod
-			List<List<Integer>> recursionResult = new ArrayList<List<Integer>>();
-			recursionResult = generateCartProduct(currentIndex+1, entries); //The cartprod of the one before
-
-			for(int i = 0; i < currentEntry.values.size(); i++){
-				for(int j = 0; j < recursionResult.size(); j++){
-					List<Integer> currentList = new ArrayList<Integer>(recursionResult.get(j)); //Copy of recursionResult - NB mutability
-					currentList.add(currentEntry.values.get(i));
-					temp.add(currentList);
+
+			public int[] next() {
+				if(!more){
+					throw new NoSuchElementException();
+				}
+
+				for(int i = 0; i < sets.length; i++){
+					tuple[i] = sets[i].get(indexes[i]);
 				}
+
+				//Turn the odometer - roll over from the last position leftwards
+				int position = sets.length-1;
+				while(position >= 0){
+					indexes[position]++;
+					if(indexes[position] < sets[position].size()) break;
+					indexes[position] = 0;
+					position--;
+				}
+				more = position >= 0;
+
+				return tuple;
 			}
-			return temp;
+		};
+	}
+
+	public static BigInteger cartcount(List<Entry> entries) {
+		//Counts the tuples in the Cartesian Product without generating them
+		//@param entries list of entries
+		//@return the product of the entry lengths - NB can be far larger than a long
+
+		BigInteger count = BigInteger.ONE;
+
+		for(Entry nextEntry: entries){
+			count = count.multiply(BigInteger.valueOf(nextEntry.size()));
 		}
 
+		return count;
 	}
 
-	public static String listAllEntries(List<Entry> entries) {
-		//Formats all the entries for displays
+	public static void listAllEntries(List<Entry> entries, ResponseWriter out) {
+		//Formats all the entries for displays, one per line
 		//@param entries list of entries to display
-		//@return entries with values
-
-		String listEntries = "";
+		//@param out where the entries are written
 
-		for(int i = 0; i < entries.size(); i++){
-			listEntries += entries.get(i).key + " ";
-			listEntries += entries.get(i).get();
-			if(i != entries.size()-1) listEntries += "\n";
+		for(Entry nextEntry: entries){
+			out.print(nextEntry.key).print(' ');
+			nextEntry.get(out);
+			out.println();
 		}
-
-		return listEntries;
 	}
 
 }
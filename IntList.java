@@ -0,0 +1,253 @@
+import java.util.List;
+import java.util.AbstractList;
+import java.util.Arrays;
+
+/**
+ * IntList is a growable array of primitive ints used to store the values of
+ * an Entry.
+ * Keeping the values unboxed saves the object header and reference held for
+ * every Integer and lets scans such as sum, min and max run over a plain array.
+ * The array is used as a ring buffer so values can be added or removed at
+ * either end in amortised O(1) while still being indexable.
+ */
+
+public class IntList {
+	private static final int DEFAULT_CAPACITY = 8;
+
+	private int[] data; //Length is always a power of two so we can wrap indexes with a mask
+	private int head; //Index in data of the first value
+	private int size;
+
+	public IntList() {
+		//Constructor method
+
+		this(DEFAULT_CAPACITY);
+	}
+
+	public IntList(int capacity) {
+		//Constructor method
+		//@param capacity the number of values we can hold before growing
+
+		this.data = new int[roundUp(capacity)];
+		this.head = 0;
+		this.size = 0;
+	}
+
+	public static IntList of(List<Integer> values) {
+		//Copies a list of boxed values into a new IntList
+		//@param values the values to copy
+		//@return the new IntList
+
+		IntList list = new IntList(values.size());
+		for(int next: values) list.add(next);
+
+		return list;
+	}
+
+	public int size() {
+		//Getter method for size
+		//@return the number of values
+
+		return size;
+	}
+
+	public int get(int index) {
+		//Finds the value at the given index - NB 0-indexed
+		//@param index the index
+		//@return the value at the index
+
+		checkIndex(index);
+		return data[(head+index) & (data.length-1)];
+	}
+
+	public void set(int index, int value) {
+		//Overwrites the value at the given index
+		//@param index the index
+		//@param value the new value
+
+		checkIndex(index);
+		data[(head+index) & (data.length-1)] = value;
+	}
+
+	public void add(int value) {
+		//Adds a value to the end
+		//@param value the value to add
+
+		ensureCapacity(size+1);
+		data[(head+size) & (data.length-1)] = value;
+		size++;
+	}
+
+	public void addFirst(int value) {
+		//Adds a value to the front
+		//@param value the value to add
+
+		ensureCapacity(size+1);
+		head = (head-1) & (data.length-1);
+		data[head] = value;
+		size++;
+	}
+
+	public void addAll(List<Integer> values) {
+		//Adds the values to the end
+		//@param values the values to add
+
+		ensureCapacity(size+values.size());
+		for(int next: values) add(next);
+	}
+
+	public int removeFirst() {
+		//Removes the value at the front
+		//@return the value removed
+
+		checkIndex(0);
+		int removed = data[head];
+		head = (head+1) & (data.length-1);
+		size--;
+
+		return removed;
+	}
+
+	public int removeAt(int index) {
+		//Removes the value at the given index
+		//Only the values on the shorter side of the index are shifted
+		//@param index the index
+		//@return the value removed
+
+		checkIndex(index);
+		int removed = get(index);
+
+		if(index < size/2){
+			//Closer to the front - shift the values before it back by one
+			for(int i = index; i > 0; i--){
+				set(i, get(i-1));
+			}
+			head = (head+1) & (data.length-1);
+		} else {
+			//Closer to the back - shift the values after it forward by one
+			for(int i = index; i < size-1; i++){
+				set(i, get(i+1));
+			}
+		}
+		size--;
+
+		return removed;
+	}
+
+	public void reverse() {
+		//Reverses the order of the values in place
+
+		for(int i = 0, j = size-1; i < j; i++, j--){
+			int temp = get(i);
+			set(i, get(j));
+			set(j, temp);
+		}
+	}
+
+	public void sort() {
+		//Sorts the values in ASCENDING order
+		//NB the values are moved to the start of the array first so they are contiguous
+
+		compact();
+		Arrays.sort(data, 0, size);
+	}
+
+	public IntList copy() {
+		//Copies the values into a new IntList
+		//@return the copy
+
+		IntList copy = new IntList(size);
+		copyTo(copy.data);
+		copy.size = size;
+
+		return copy;
+	}
+
+	public int[] toArray() {
+		//Copies the values into an array of exactly the right length
+		//@return the values
+
+		int[] copy = new int[size];
+		copyTo(copy);
+
+		return copy;
+	}
+
+	public long sizeInBytes() {
+		//Estimates the heap used by the list
+		//@return the number of bytes
+
+		return 16 + 16 + data.length*4L;
+	}
+
+	public List<Integer> asList() {
+		//Read-only view of the values for code still written against List<Integer>
+		//NB values are boxed one at a time as they are read
+		//@return the view
+
+		return new AbstractList<Integer>() {
+			public Integer get(int index) {
+				return IntList.this.get(index);
+			}
+
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	private void checkIndex(int index) {
+		//Throws the same exception ArrayList would for a bad index
+		//@param index the index to check
+
+		if(index < 0 || index >= size){
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+	}
+
+	private void copyTo(int[] target) {
+		//Copies the values in order to the start of target, unwrapping the ring
+		//@param target the array to copy into - NB at least size long
+
+		int firstPart = Math.min(size, data.length-head);
+		System.arraycopy(data, head, target, 0, firstPart);
+		System.arraycopy(data, 0, target, firstPart, size-firstPart);
+	}
+
+	private void compact() {
+		//Moves the values so the first one is at index 0 of data
+
+		if(head != 0){
+			int[] moved = new int[data.length];
+			copyTo(moved);
+			data = moved;
+			head = 0;
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		//Doubles the backing array when full so adding at either end is amortised O(1)
+		//@param capacity the number of values we need room for
+
+		if(capacity > data.length){
+			int[] grown = new int[roundUp(capacity)];
+			copyTo(grown);
+			data = grown;
+			head = 0;
+		}
+	}
+
+	private static int roundUp(int capacity) {
+		//Rounds up to the next power of two so indexes can wrap with a mask
+		//@param capacity the minimum capacity
+		//@return the rounded capacity
+
+		if(capacity <= 1) return 1;
+		int rounded = Integer.highestOneBit(capacity-1) << 1;
+		if(rounded <= 0){
+			throw new OutOfMemoryError("IntList capacity too large: " + capacity);
+		}
+
+		return rounded;
+	}
+}
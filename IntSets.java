@@ -0,0 +1,386 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * IntSets computes set difference, intersection and union over the primitive
+ * values of several entries.
+ * When the values fall in a small enough range they are marked in dense
+ * bitmaps and read back in ascending order; otherwise they are counted in an
+ * open-addressed int hash table and only the result is sorted.
+ * Large operations are split over the keys and reduced in parallel on the
+ * common ForkJoinPool; the result is identical to the sequential one.
+ */
+
+public class IntSets {
+	//A bitmap is used while the value range is at most this many bits per value stored
+	//At 8 bits per value the bitmap is never bigger than the int[] that holds the values
+	private static final long DENSE_BITS_PER_VALUE = 8;
+	private static final long DENSE_MIN_RANGE = 1 << 12;
+
+	//Below this many values in total the work stays on the calling thread
+	private static final long PARALLEL_THRESHOLD = 1 << 17;
+
+	private static final int DIFF = 0;
+	private static final int INTER = 1;
+	private static final int UNION = 2;
+
+	private IntSets() {
+		//Only static methods - NB never constructed
+	}
+
+	public static int[] diff(IntList[] sets) {
+		//Computes the values that appear in exactly one of the sets
+		//@param sets the values of each entry
+		//@return the difference in ascending order
+
+		return run(sets, DIFF);
+	}
+
+	public static int[] inter(IntList[] sets) {
+		//Computes the values that appear in every set
+		//@param sets the values of each entry
+		//@return the intersection in ascending order
+
+		return run(sets, INTER);
+	}
+
+	public static int[] union(IntList[] sets) {
+		//Computes the values that appear in any set
+		//@param sets the values of each entry
+		//@return the union in ascending order
+
+		return run(sets, UNION);
+	}
+
+	private static int[] run(IntList[] sets, int operation) {
+		//Runs the operation sequentially or as a parallel tree reduction over the sets
+		//@param sets the values of each entry
+		//@param operation one of DIFF, INTER or UNION
+		//@return the result in ascending order
+
+		if(sets.length < 2 || count(sets, 0, sets.length) < PARALLEL_THRESHOLD){
+			return compute(sets, operation);
+		}
+
+		return ForkJoinPool.commonPool().invoke(new SetTask(sets, 0, sets.length, operation))[0];
+	}
+
+	private static long count(IntList[] sets, int from, int to) {
+		//Counts the values in sets[from..to)
+		//@return the number of values
+
+		long total = 0;
+		for(int i = from; i < to; i++) total += sets[i].size();
+
+		return total;
+	}
+
+	private static class SetTask extends RecursiveTask<int[][]> {
+		//Halves the range of sets until it is small, computes each half and merges the sorted results
+		//For DIFF a part is {values seen once, values seen more than once}, otherwise just {values}
+
+		private static final long serialVersionUID = 1L; //ForkJoinTask is Serializable - NB never actually serialized
+
+		private final IntList[] sets;
+		private final int from;
+		private final int to;
+		private final int operation;
+
+		private SetTask(IntList[] sets, int from, int to, int operation) {
+			//Constructor method
+			//@param from the first set, to one past the last set in this part
+
+			this.sets = sets;
+			this.from = from;
+			this.to = to;
+			this.operation = operation;
+		}
+
+		protected int[][] compute() {
+			if(to-from == 1 || count(sets, from, to) < PARALLEL_THRESHOLD){
+				IntList[] part = Arrays.copyOfRange(sets, from, to);
+				if(operation == DIFF){
+					int[] once = IntSets.compute(part, DIFF);
+					return new int[][] {once, minus(IntSets.compute(part, UNION), once)};
+				}
+				return new int[][] {IntSets.compute(part, operation)};
+			}
+
+			int middle = (from+to) >>> 1;
+			SetTask left = new SetTask(sets, from, middle, operation);
+			left.fork();
+			int[][] right = new SetTask(sets, middle, to, operation).compute();
+			int[][] leftResult = left.join();
+
+			if(operation == UNION){
+				return new int[][] {or(leftResult[0], right[0])};
+			} else if(operation == INTER){
+				return new int[][] {and(leftResult[0], right[0])};
+			}
+
+			//Seen once overall: once on exactly one side and never more than once on the other
+			int[] onceBoth = and(leftResult[0], right[0]);
+			int[] multi = or(or(leftResult[1], right[1]), onceBoth);
+			int[] once = minus(or(leftResult[0], right[0]), multi);
+
+			return new int[][] {once, multi};
+		}
+	}
+
+	private static int[] or(int[] a, int[] b) {
+		//Merges two ascending arrays of distinct values
+		//@return the values in either, ascending
+
+		int[] merged = new int[a.length+b.length];
+		int i = 0, j = 0, k = 0;
+
+		while(i < a.length && j < b.length){
+			if(a[i] < b[j]) merged[k++] = a[i++];
+			else if(a[i] > b[j]) merged[k++] = b[j++];
+			else { merged[k++] = a[i++]; j++; }
+		}
+		while(i < a.length) merged[k++] = a[i++];
+		while(j < b.length) merged[k++] = b[j++];
+
+		return Arrays.copyOf(merged, k);
+	}
+
+	private static int[] and(int[] a, int[] b) {
+		//Intersects two ascending arrays of distinct values
+		//@return the values in both, ascending
+
+		int[] merged = new int[Math.min(a.length, b.length)];
+		int i = 0, j = 0, k = 0;
+
+		while(i < a.length && j < b.length){
+			if(a[i] < b[j]) i++;
+			else if(a[i] > b[j]) j++;
+			else { merged[k++] = a[i++]; j++; }
+		}
+
+		return Arrays.copyOf(merged, k);
+	}
+
+	private static int[] minus(int[] a, int[] b) {
+		//Removes the values of b from a, both ascending arrays of distinct values
+		//@return the values only in a, ascending
+
+		int[] merged = new int[a.length];
+		int i = 0, j = 0, k = 0;
+
+		while(i < a.length){
+			while(j < b.length && b[j] < a[i]) j++;
+			if(j == b.length || b[j] != a[i]) merged[k++] = a[i];
+			i++;
+		}
+
+		return Arrays.copyOf(merged, k);
+	}
+
+	private static int[] compute(IntList[] sets, int operation) {
+		//Picks the dense or hashed strategy from the range and number of values
+		//@param sets the values of each entry
+		//@param operation one of DIFF, INTER or UNION
+		//@return the result in ascending order
+
+		long total = 0;
+		int min = Integer.MAX_VALUE;
+		int max = Integer.MIN_VALUE;
+
+		for(IntList nextSet: sets){
+			total += nextSet.size();
+			for(int i = 0; i < nextSet.size(); i++){
+				int next = nextSet.get(i);
+				if(next < min) min = next;
+				if(next > max) max = next;
+			}
+		}
+
+		if(total == 0){
+			return new int[0];
+		}
+
+		long range = (long) max - min + 1;
+		if(range <= Math.max(DENSE_MIN_RANGE, total*DENSE_BITS_PER_VALUE) && range <= Integer.MAX_VALUE){
+			return dense(sets, operation, min, (int) range);
+		}
+
+		return hashed(sets, operation, total);
+	}
+
+	private static int[] dense(IntList[] sets, int operation, int min, int range) {
+		//Combines one bitmap per set word by word - scanning the result gives ascending order for free
+		//For DIFF we track the values seen once and the values seen more than once
+		//@param sets the values of each entry
+		//@param operation one of DIFF, INTER or UNION
+		//@param min the smallest value in any set - bit 0 of the bitmaps
+		//@param range the number of bits needed
+		//@return the result in ascending order
+
+		int words = (range+63) >>> 6;
+		long[] result = new long[words];
+		long[] current = new long[words];
+		long[] seenTwice = operation == DIFF ? new long[words] : null;
+
+		for(int s = 0; s < sets.length; s++){
+			IntList nextSet = sets[s];
+			long[] target = s == 0 || operation == UNION ? result : current;
+
+			if(target == current) Arrays.fill(current, 0);
+			for(int i = 0; i < nextSet.size(); i++){
+				int bit = nextSet.get(i) - min;
+				target[bit >>> 6] |= 1L << bit;
+			}
+
+			if(target == current){
+				for(int w = 0; w < words; w++){
+					if(operation == INTER){
+						result[w] &= current[w];
+					} else {
+						seenTwice[w] |= result[w] & current[w];
+						result[w] = (result[w] | current[w]) & ~seenTwice[w];
+					}
+				}
+			}
+		}
+
+		int count = 0;
+		for(long nextWord: result) count += Long.bitCount(nextWord);
+
+		int[] values = new int[count];
+		int index = 0;
+		for(int w = 0; w < words; w++){
+			long nextWord = result[w];
+			while(nextWord != 0){
+				values[index++] = min + (w << 6) + Long.numberOfTrailingZeros(nextWord);
+				nextWord &= nextWord-1;
+			}
+		}
+
+		return values;
+	}
+
+	private static int[] hashed(IntList[] sets, int operation, long total) {
+		//Counts how many sets each value appears in with an open-addressed table
+		//@param sets the values of each entry
+		//@param operation one of DIFF, INTER or UNION
+		//@param total the number of values over every set
+		//@return the result in ascending order
+
+		IntCounter counter = new IntCounter((int) Math.min(total, 1 << 30));
+
+		for(int s = 0; s < sets.length; s++){
+			IntList nextSet = sets[s];
+			for(int i = 0; i < nextSet.size(); i++){
+				counter.add(nextSet.get(i), s);
+			}
+		}
+
+		int[] values = counter.keysWithCount(operation == DIFF ? 1 : operation == INTER ? sets.length : -1);
+		Arrays.sort(values);
+
+		return values;
+	}
+
+	private static class IntCounter {
+		//Open-addressed (linear probing) map from value to the number of distinct sets it was seen in
+		//lastSet stops repeats inside one set being counted twice
+
+		private static final int MAX_CAPACITY = 1 << 30; //Largest power of two an array can hold
+
+		private int[] keys;
+		private int[] counts; //0 marks an empty slot
+		private int[] lastSet;
+		private int size;
+		private int mask;
+
+		private IntCounter(int expected) {
+			//Constructor method
+			//@param expected roughly how many values will be added - NB the table starts at most half full, grow() handles more
+
+			long wanted = Math.max(16, 2L * expected);
+			int capacity = (int) Math.min(MAX_CAPACITY, Long.highestOneBit(wanted - 1) << 1);
+			this.keys = new int[capacity];
+			this.counts = new int[capacity];
+			this.lastSet = new int[capacity];
+			this.mask = capacity-1;
+		}
+
+		private void add(int value, int set) {
+			//Records that value appears in the given set
+			//@param value the value
+			//@param set the index of the set it came from
+
+			int slot = mix(value) & mask;
+			while(counts[slot] != 0){
+				if(keys[slot] == value){
+					if(lastSet[slot] != set){
+						counts[slot]++;
+						lastSet[slot] = set;
+					}
+					return;
+				}
+				slot = (slot+1) & mask;
+			}
+
+			keys[slot] = value;
+			counts[slot] = 1;
+			lastSet[slot] = set;
+			size++;
+
+			if(size*2 > keys.length && keys.length < MAX_CAPACITY) grow();
+		}
+
+		private int[] keysWithCount(int count) {
+			//Collects the values seen in exactly count sets
+			//@param count the count to match - NB -1 matches every value
+			//@return the values in no particular order
+
+			int matches = 0;
+			for(int i = 0; i < keys.length; i++){
+				if(counts[i] != 0 && (count == -1 || counts[i] == count)) matches++;
+			}
+
+			int[] values = new int[matches];
+			int index = 0;
+			for(int i = 0; i < keys.length; i++){
+				if(counts[i] != 0 && (count == -1 || counts[i] == count)) values[index++] = keys[i];
+			}
+
+			return values;
+		}
+
+		private void grow() {
+			//Doubles the table and re-inserts every value
+
+			int[] oldKeys = keys;
+			int[] oldCounts = counts;
+			int[] oldLastSet = lastSet;
+
+			keys = new int[oldKeys.length*2];
+			counts = new int[oldKeys.length*2];
+			lastSet = new int[oldKeys.length*2];
+			mask = keys.length-1;
+
+			for(int i = 0; i < oldKeys.length; i++){
+				if(oldCounts[i] != 0){
+					int slot = mix(oldKeys[i]) & mask;
+					while(counts[slot] != 0) slot = (slot+1) & mask;
+					keys[slot] = oldKeys[i];
+					counts[slot] = oldCounts[i];
+					lastSet[slot] = oldLastSet[i];
+				}
+			}
+		}
+
+		private static int mix(int value) {
+			//Spreads the bits of value so runs of nearby values don't cluster
+			//@param value the value
+			//@return the mixed hash
+
+			int hash = value * 0x9E3779B9;
+			return hash ^ (hash >>> 16);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * KeyLocks lets commands on different keys run at the same time while
+ * commands that see the whole database run alone.
+ * Keys hash to one of a fixed number of lock stripes, and a command takes
+ * the stripes of the keys it names. Stripes are always taken in ascending
+ * order, so two commands can never each hold a stripe the other is waiting
+ * for. A command that changes or reads everything (SNAPSHOT, ROLLBACK, LIST
+ * KEYS...) starts a new epoch by taking every stripe the same way, which
+ * waits for the keyed commands in flight and keeps new ones out until it is
+ * done. Keyed commands never share a lock unless their keys share a stripe,
+ * so they don't slow each other down on more cores.
+ */
+
+public class KeyLocks {
+	private final ReentrantLock[] stripes;
+	private final int[] all; //Every stripe, in order
+	private final int mask;
+
+	public KeyLocks(int count) {
+		//Constructor method
+		//@param count how many stripes - NB rounded up to a power of two
+
+		int size = Integer.highestOneBit(Math.max(1, count-1)) << 1;
+		this.stripes = new ReentrantLock[size];
+		this.all = new int[size];
+		for(int i = 0; i < size; i++){
+			stripes[i] = new ReentrantLock();
+			all[i] = i;
+		}
+		this.mask = size-1;
+	}
+
+	private int stripe(String key) {
+		//Finds the stripe a key belongs to
+		//@param key the key
+		//@return the index of its stripe
+
+		int hash = key.hashCode();
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	public int[] lock(List<String> keys) {
+		//Takes the stripes of some keys
+		//@param keys the keys - NB may repeat
+		//@return the stripes held, to pass to unlock
+
+		int[] held = new int[keys.size()];
+		for(int i = 0; i < held.length; i++){
+			held[i] = stripe(keys.get(i));
+		}
+
+		//Ascending and without repeats, so every command takes stripes in the same order
+		Arrays.sort(held);
+		int count = 0;
+		for(int i = 0; i < held.length; i++){
+			if(i == 0 || held[i] != held[i-1]) held[count++] = held[i];
+		}
+		held = count == held.length ? held : Arrays.copyOf(held, count);
+
+		return lock(held);
+	}
+
+	public int[] lock(String key) {
+		//Takes the stripe of one key
+		//@param key the key
+		//@return the stripe held, to pass to unlock
+
+		return lock(new int[] {stripe(key)});
+	}
+
+	public int[] lockAll() {
+		//Takes every stripe - NB waits for every keyed command in flight to finish
+		//@return the stripes held, to pass to unlock
+
+		return lock(all);
+	}
+
+	private int[] lock(int[] held) {
+		//Takes stripes in the order given
+		//@param held the stripes - NB ascending
+		//@return held
+
+		for(int next: held){
+			stripes[next].lock();
+		}
+
+		return held;
+	}
+
+	public void unlock(int[] held) {
+		//Releases stripes taken by lock or lockAll
+		//@param held what lock returned
+
+		for(int i = held.length-1; i >= 0; i--){
+			stripes[held[i]].unlock();
+		}
+	}
+}
@@ -0,0 +1,156 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyStats counts the calls, errors and output of one kind of command
+ * and keeps a histogram of how long its calls took, for INFO STATS.
+ * Sessions on different threads record into it at once without locking.
+ * The histogram is log-linear: below 2^SUB_BITS ns every ns has its own
+ * bucket, and above that each power of two is split into 2^SUB_BITS
+ * buckets, so a percentile is never more than about 6% out and the whole
+ * range of a long fits in under a thousand counters. Recording is a few
+ * atomic adds, so timing a command costs well under 100 ns.
+ * Reset zeroes the counters one at a time, so a call recorded at the same
+ * moment may be half counted.
+ */
+
+public class LatencyStats {
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int LINEAR = SUB_BUCKETS*2; //Values below this get a bucket each
+	private static final int BUCKETS = LINEAR + (64 - SUB_BITS - 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets;
+	private final LongAdder errors;
+	private final LongAdder written;
+	private final AtomicLong max;
+
+	public LatencyStats() {
+		//Constructor method
+
+		this.buckets = new AtomicLongArray(BUCKETS);
+		this.errors = new LongAdder();
+		this.written = new LongAdder();
+		this.max = new AtomicLong();
+	}
+
+	public void record(long nanos, boolean failed, long output) {
+		//Counts one call
+		//@param nanos how long it took
+		//@param failed true if it wrote an error
+		//@param output how much it wrote
+
+		long value = Math.max(0, nanos);
+		buckets.incrementAndGet(bucket(value));
+		if(failed){
+			errors.increment();
+		}
+		if(output != 0){
+			written.add(output);
+		}
+
+		long highest = max.get();
+		while(value > highest && !max.compareAndSet(highest, value)){
+			highest = max.get();
+		}
+	}
+
+	private static int bucket(long value) {
+		//Finds the bucket a value is counted in
+		//@param value ns - NB not negative
+		//@return its index
+
+		if(value < LINEAR){
+			return (int) value;
+		}
+
+		int power = 63 - Long.numberOfLeadingZeros(value); //At least SUB_BITS+1
+		int sub = (int) (value >>> (power - SUB_BITS)) & (SUB_BUCKETS-1);
+		return LINEAR + (power - SUB_BITS - 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long highest(int bucket) {
+		//Finds the largest value counted in a bucket
+		//@param bucket its index
+		//@return the value in ns
+
+		if(bucket < LINEAR){
+			return bucket;
+		}
+
+		int power = (bucket - LINEAR) / SUB_BUCKETS + SUB_BITS + 1;
+		long sub = (bucket - LINEAR) % SUB_BUCKETS;
+		long lowest = (SUB_BUCKETS + sub) << (power - SUB_BITS);
+		return lowest + (1L << (power - SUB_BITS)) - 1;
+	}
+
+	public long calls() {
+		//Counts the calls recorded
+		//@return the number of calls
+
+		long calls = 0;
+		for(int i = 0; i < BUCKETS; i++){
+			calls += buckets.get(i);
+		}
+
+		return calls;
+	}
+
+	public long errors() {
+		//Counts the calls that wrote an error
+		//@return the number of errors
+
+		return errors.sum();
+	}
+
+	public long written() {
+		//Adds up the output of every call
+		//@return characters written - NB the same as bytes for ASCII
+
+		return written.sum();
+	}
+
+	public long max() {
+		//Finds the slowest call
+		//@return how long it took in ns
+
+		return max.get();
+	}
+
+	public long[] percentiles(double... fractions) {
+		//Finds how long calls took at some points in the distribution
+		//@param fractions e.g. 0.5 for the median - NB ascending
+		//@return ns at each point, no more than the slowest call - NB 0 if nothing is recorded
+
+		long[] counts = new long[BUCKETS];
+		long calls = 0;
+		for(int i = 0; i < BUCKETS; i++){
+			counts[i] = buckets.get(i);
+			calls += counts[i];
+		}
+
+		long[] found = new long[fractions.length];
+		long seen = 0;
+		int next = 0;
+		for(int i = 0; i < BUCKETS && next < fractions.length; i++){
+			seen += counts[i];
+			while(next < fractions.length && seen > 0 && seen >= Math.ceil(fractions[next] * calls)){
+				found[next++] = Math.min(highest(i), max());
+			}
+		}
+
+		return found;
+	}
+
+	public void reset() {
+		//Forgets everything recorded
+
+		for(int i = 0; i < BUCKETS; i++){
+			buckets.set(i, 0);
+		}
+		errors.reset();
+		written.reset();
+		max.set(0);
+	}
+}
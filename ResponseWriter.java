@@ -0,0 +1,252 @@
+import java.io.Writer;
+import java.io.IOException;
+
+/**
+ * ResponseWriter collects the output of commands in one reusable buffer and
+ * writes it out in large pieces instead of a println at a time.
+ * Values are rendered straight into the buffer, so displaying an entry or a
+ * whole database takes time linear in the size of the output.
+ * It is flushed after every command when someone is typing at a console,
+ * otherwise only when the buffer fills up or the input ends.
+ * With errorsOnly set, everything but errors is dropped and each error is
+ * written as "line N: message" so problems in a long script can be found.
+ */
+
+public class ResponseWriter {
+	private static final int FLUSH_THRESHOLD = 1 << 16; //Write out once this many chars are waiting
+	private static final int MAX_KEPT_CAPACITY = 1 << 20; //Don't hold on to a huge buffer after one big response
+	private static final int START_CAPACITY = 1 << 12;
+
+	private final Writer sink;
+	private final boolean flushEachCommand;
+	private final boolean errorsOnly;
+	private long line; //The input line whose response is being written
+	private Runnable beforeWrite; //Run before any output leaves the buffer - NB null if not needed
+	private StringBuilder buffer;
+	private char[] chunk; //Reused to copy the buffer into the sink without a String - NB made by the first write
+	private boolean error; //Like PrintStream we don't throw, we remember that writing failed
+	private long errors; //Error lines added so far
+	private long flushed; //Characters handed to the sink so far
+
+	public ResponseWriter(Writer sink, boolean flushEachCommand) {
+		//Constructor method
+		//@param sink where the output goes
+		//@param flushEachCommand true to write out after every command, false to wait for the buffer to fill
+
+		this(sink, flushEachCommand, false);
+	}
+
+	public ResponseWriter(Writer sink, boolean flushEachCommand, boolean errorsOnly) {
+		//Constructor method
+		//@param errorsOnly true to write nothing but errors
+
+		this.sink = sink;
+		this.flushEachCommand = flushEachCommand;
+		this.errorsOnly = errorsOnly;
+		this.buffer = new StringBuilder(START_CAPACITY);
+	}
+
+	public void setBeforeWrite(Runnable beforeWrite) {
+		//Setter method for beforeWrite, e.g. so logged commands are committed before their responses are seen
+		//@param beforeWrite what to run before output is written
+
+		this.beforeWrite = beforeWrite;
+	}
+
+	public void startCommand(long line) {
+		//Notes which input line the next response belongs to
+		//@param line the line number - NB 1-indexed
+
+		this.line = line;
+	}
+
+	public ResponseWriter error(String message) {
+		//Adds an error line to the response - NB the only output kept when errorsOnly is set
+		//@param message the error
+		//@return this writer
+
+		if(errorsOnly){
+			buffer.append("line ").append(line).append(": ");
+		}
+		buffer.append(message).append('\n');
+		errors++;
+		spill();
+		return this;
+	}
+
+	public ResponseWriter print(String text) {
+		//Adds text to the response
+		//@param text the text
+		//@return this writer
+
+		if(errorsOnly) return this;
+		buffer.append(text);
+		spill();
+		return this;
+	}
+
+	public ResponseWriter print(char next) {
+		//Adds a character to the response
+		//@param next the character
+		//@return this writer
+
+		if(errorsOnly) return this;
+		buffer.append(next);
+		spill();
+		return this;
+	}
+
+	public ResponseWriter print(long number) {
+		//Adds a number to the response without making a String first
+		//@param number the number
+		//@return this writer
+
+		if(errorsOnly) return this;
+		buffer.append(number);
+		spill();
+		return this;
+	}
+
+	public ResponseWriter println(String text) {
+		//Adds a line to the response
+		//@param text the line - NB without the new line
+		//@return this writer
+
+		return print(text).println();
+	}
+
+	public ResponseWriter println(long number) {
+		//Adds a number on its own line to the response
+		//@param number the number
+		//@return this writer
+
+		return print(number).println();
+	}
+
+	public ResponseWriter println() {
+		//Ends the current line
+
+		if(errorsOnly) return this;
+		buffer.append('\n');
+		spill();
+		return this;
+	}
+
+	public ResponseWriter values(IntList values) {
+		//Adds values the way GET displays them, e.g. [1 2 3]
+		//@param values the values
+		//@return this writer
+
+		if(errorsOnly) return this;
+		buffer.append('[');
+		for(int i = 0; i < values.size(); i++){
+			if(i != 0) buffer.append(' ');
+			buffer.append(values.get(i));
+		}
+		buffer.append(']');
+		spill();
+		return this;
+	}
+
+	public ResponseWriter values(int[] values) {
+		//Adds values the way GET displays them, e.g. [1 2 3]
+		//@param values the values
+		//@return this writer
+
+		if(errorsOnly) return this;
+		buffer.append('[');
+		for(int i = 0; i < values.length; i++){
+			if(i != 0) buffer.append(' ');
+			buffer.append(values[i]);
+		}
+		buffer.append(']');
+		spill();
+		return this;
+	}
+
+	public void endCommand() {
+		//Marks the end of a command's response - written out now if someone is waiting on it
+
+		if(flushEachCommand){
+			flush();
+		}
+	}
+
+	public void flush() {
+		//Writes out everything in the buffer
+
+		write();
+		try{
+			sink.flush();
+		} catch(IOException e){
+			error = true;
+		}
+	}
+
+	public void trim() {
+		//Lets go of the buffers while nothing is waiting in them, e.g. while a client connection is idle
+
+		if(buffer.length() == 0 && buffer.capacity() > 16){
+			buffer = new StringBuilder(16);
+			chunk = null;
+		}
+	}
+
+	public long getErrors() {
+		//Counts the error lines added, e.g. to tell whether a command failed
+		//@return the number of errors so far
+
+		return errors;
+	}
+
+	public long getWritten() {
+		//Counts the output added, whether or not it has left the buffer yet
+		//@return characters so far - NB the same as bytes for ASCII
+
+		return flushed + buffer.length();
+	}
+
+	public boolean checkError() {
+		//Checks whether any write has failed, e.g. the reader went away
+		//@return true if output has been lost
+
+		return error;
+	}
+
+	private void spill() {
+		//Writes out the buffer once it is big, so streamed responses like CARTPROD use constant memory
+
+		if(buffer.length() >= FLUSH_THRESHOLD){
+			write();
+		}
+	}
+
+	private void write() {
+		//Copies the buffer into the sink a chunk at a time and empties it
+
+		if(beforeWrite != null){
+			beforeWrite.run();
+		}
+
+		if(chunk == null && buffer.length() > 0){
+			chunk = new char[1 << 13];
+		}
+
+		try{
+			for(int start = 0; start < buffer.length(); start += chunk.length){
+				int end = Math.min(buffer.length(), start+chunk.length);
+				buffer.getChars(start, end, chunk, 0);
+				sink.write(chunk, 0, end-start);
+			}
+		} catch(IOException e){
+			error = true;
+		}
+		flushed += buffer.length();
+
+		if(buffer.capacity() > MAX_KEPT_CAPACITY){
+			buffer = new StringBuilder(START_CAPACITY);
+		} else {
+			buffer.setLength(0);
+		}
+	}
+}
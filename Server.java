@@ -0,0 +1,321 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server lets many local clients share one database over TCP, speaking the
+ * same line protocol as the console: each line typed gets a "> " prompt and
+ * then its response, so a script piped through a socket gives the same
+ * output as one piped into main.
+ * One thread runs a non-blocking Selector loop, so commands from different
+ * clients never run at the same time. Each connection has its own Session,
+ * read buffer and write buffer. A client may send many lines before reading
+ * any responses (pipelining); every complete line that has arrived is run
+ * and the responses are written back in one go.
+ * A client that doesn't read its responses stops having its lines run once
+ * OUTPUT_LIMIT bytes are waiting for it, so it can't fill the heap. A single
+ * reply bigger than that, like a streamed CARTPROD, is written to the socket
+ * as it is produced, with the command waiting whenever OUTPUT_LIMIT bytes
+ * are unsent. Every client waits with it, so a client that leaves a reply
+ * waiting for REPLY_TIMEOUT_MS in all is disconnected. BYE closes the
+ * connection rather than the server.
+ */
+
+public class Server {
+	private static final int READ_SIZE = 1 << 16; //Starting size of a read buffer - NB grows for longer lines
+	private static final int OUTPUT_LIMIT = 1 << 20; //Stop running a client's lines once this many bytes wait to be sent
+	private static final long REPLY_TIMEOUT_MS = 5000; //Most time one command may wait for its client to read, in total
+
+	private final CrunchDB db;
+	private final CommandRegistry commands;
+	private final CommandLog log; //NB null if changes aren't logged
+	private Selector writable; //Waits for one client's socket to take more of a reply - NB made by the first wait
+
+	public Server(CrunchDB db, CommandRegistry commands, CommandLog log) {
+		//Constructor method
+		//@param db the database the clients share
+		//@param commands the commands that can be run
+		//@param log the command log - NB null if changes aren't logged
+
+		this.db = db;
+		this.commands = commands;
+		this.log = log;
+	}
+
+	public void run(int port) throws IOException {
+		//Accepts clients on the loopback address and runs their commands until the process is stopped
+		//@param port the port to listen on - NB 0 picks a free one
+
+		Selector selector = Selector.open();
+		ServerSocketChannel listener = ServerSocketChannel.open();
+		listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		listener.configureBlocking(false);
+		listener.register(selector, SelectionKey.OP_ACCEPT);
+
+		System.err.println("listening on " + listener.getLocalAddress());
+
+		while(true){
+			selector.select();
+
+			Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+			while(ready.hasNext()){
+				SelectionKey key = ready.next();
+				ready.remove();
+
+				try{
+					if(!key.isValid()){
+						continue;
+					} else if(key.isAcceptable()){
+						accept(listener, selector);
+					} else {
+						Connection connection = (Connection) key.attachment();
+						if(key.isReadable()) connection.read();
+						if(key.isValid() && key.isWritable()) connection.write();
+					}
+				} catch(IOException e){
+					//The client went away - NB its session is dropped, the database carries on
+					key.cancel();
+					key.channel().close();
+				}
+			}
+		}
+	}
+
+	private void accept(ServerSocketChannel listener, Selector selector) throws IOException {
+		//Takes a new client and gives it a session
+		//@param listener the listening channel
+		//@param selector the selector to register it with
+
+		SocketChannel channel = listener.accept();
+		if(channel == null){
+			return;
+		}
+
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		key.attach(new Connection(key));
+	}
+
+	private class Connection {
+		//One client: what it has sent that hasn't been run yet, and the responses it hasn't read yet
+
+		private final SelectionKey key;
+		private final SocketChannel channel;
+		private final Session session;
+		private final ResponseWriter out;
+		private ByteBuffer input; //Bytes received - NB in write mode, [0, position) not yet run
+		private ByteBuffer output; //Responses waiting to be sent - NB in write mode
+		private boolean skipNewLine; //The last line ended with \r, so a \n straight after belongs to it
+		private boolean held; //Lines are waiting because too much output is
+		private boolean ended; //The client has closed its side, so what's left is its last line
+		private boolean closing; //BYE was run or the client was disconnected, so no more lines are run
+		private boolean failed; //The client left a reply waiting too long and was disconnected
+		private long waited; //ns the current command has waited for the client to read its reply
+		private long lines; //Lines run so far
+
+		private Connection(SelectionKey key) {
+			//Constructor method
+			//@param key the connection's selection key
+
+			this.key = key;
+			this.channel = (SocketChannel) key.channel();
+			this.input = ByteBuffer.allocate(READ_SIZE);
+			this.output = ByteBuffer.allocate(READ_SIZE);
+
+			//Responses are encoded straight into the output buffer
+			OutputStream bytes = new OutputStream() {
+				public void write(int b) throws IOException {
+					reserve(1);
+					output.put((byte) b);
+				}
+
+				public void write(byte[] b, int off, int len) throws IOException {
+					reserve(len);
+					output.put(b, off, len);
+				}
+			};
+			this.out = new ResponseWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8), false);
+			this.session = new Session(db, commands, out);
+			if(log != null){
+				session.setLog(log);
+				out.setBeforeWrite(log::commit);
+			}
+		}
+
+		private void reserve(int length) throws IOException {
+			//Makes room in the output buffer, waiting for the client to read if OUTPUT_LIMIT bytes are already unsent
+			//@param length how many more bytes are coming
+
+			if(failed){
+				throw new IOException("client disconnected");
+			}
+			if(output.position() + length > OUTPUT_LIMIT){
+				drain(Math.max(0, OUTPUT_LIMIT - length));
+			}
+
+			if(output.remaining() < length){
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(output.capacity()*2, output.position() + length));
+				output.flip();
+				bigger.put(output);
+				output = bigger;
+			}
+		}
+
+		private void drain(int room) throws IOException {
+			//Blocks the command until the socket has taken enough of its reply, like a console that is slow to print
+			//Disconnects the client once the command has waited REPLY_TIMEOUT_MS in all, so it can't hold up the server for ever
+			//@param room the most bytes that may be left unsent
+
+			send();
+			while(output.position() > room){
+				long left = TimeUnit.MILLISECONDS.toNanos(REPLY_TIMEOUT_MS) - waited;
+				if(left <= 0){
+					failed = true;
+					closing = true;
+					output.clear();
+					key.cancel();
+					channel.close();
+					throw new IOException("client stopped reading");
+				}
+
+				if(writable == null){
+					writable = Selector.open();
+				}
+				long started = System.nanoTime();
+				SelectionKey waiting = channel.register(writable, SelectionKey.OP_WRITE);
+				writable.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(left)));
+				waiting.cancel();
+				writable.selectNow(); //Deregisters the channel so it can be registered again
+				waited += System.nanoTime() - started;
+
+				send();
+			}
+		}
+
+		private void read() throws IOException {
+			//Reads what the client has sent and runs every complete line
+
+			if(!input.hasRemaining()){
+				//A line longer than the buffer
+				ByteBuffer bigger = ByteBuffer.allocate(input.capacity()*2);
+				input.flip();
+				bigger.put(input);
+				input = bigger;
+			}
+
+			if(channel.read(input) < 0){
+				ended = true;
+			}
+
+			run();
+			write();
+		}
+
+		private void run() {
+			//Runs the complete lines waiting in the input buffer, stopping early if the client has too much unread output
+
+			int start = 0;
+			int end = input.position();
+			int i = 0;
+
+			for(; i < end && !closing; i++){
+				if(output.position() >= OUTPUT_LIMIT){
+					break;
+				}
+
+				byte next = input.get(i);
+				if(skipNewLine){
+					skipNewLine = false;
+					if(next == '\n'){
+						start = i+1;
+						continue;
+					}
+				}
+
+				if(next == '\n' || next == '\r'){
+					skipNewLine = next == '\r';
+					execute(start, i);
+					start = i+1;
+				}
+			}
+
+			held = i < end && !closing;
+			if(!held && ended && start < end && !closing){
+				//Like readLine, a last line without a new line still counts
+				execute(start, end);
+				start = end;
+			}
+
+			//Keep what wasn't run at the front of the buffer
+			input.flip();
+			input.position(start);
+			input.compact();
+
+			out.flush();
+		}
+
+		private void execute(int start, int end) {
+			//Runs one line, prompt first like the console
+			//@param start index of its first byte in the input buffer
+			//@param end index after its last byte
+
+			String line = new String(input.array(), start, end-start, StandardCharsets.UTF_8);
+
+			waited = 0;
+			out.startCommand(++lines);
+			out.print("> ");
+			if(!session.execute(line)){
+				closing = true;
+			}
+			out.endCommand();
+		}
+
+		private void write() throws IOException {
+			//Sends as much waiting output as the socket takes, then decides what to wait for next
+
+			if(failed){
+				throw new IOException("client stopped reading");
+			}
+
+			send();
+			if(held && output.position() < OUTPUT_LIMIT){
+				//The client has caught up, so run the lines that were held back
+				run();
+				send();
+			}
+
+			boolean finished = closing || (ended && !held);
+			if(finished && output.position() == 0){
+				key.cancel();
+				channel.close();
+				return;
+			}
+
+			//Held lines are run a batch at a time as the socket drains, so other clients get their turn in between
+			int interest = output.position() > 0 || held ? SelectionKey.OP_WRITE : 0;
+			if(!finished && !held){
+				interest |= SelectionKey.OP_READ;
+			}
+			key.interestOps(interest);
+		}
+
+		private void send() throws IOException {
+			//Writes waiting output to the socket without blocking
+
+			output.flip();
+			channel.write(output);
+			output.compact();
+		}
+	}
+}
@@ -0,0 +1,336 @@
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * Session runs the lines typed by one user against the database and keeps
+ * the state that belongs to that user rather than to the data, which is the
+ * MULTI/EXEC transaction being built.
+ * Between MULTI and EXEC each command is checked and queued instead of run.
+ * EXEC then runs the queue back to back as one response, so nothing else
+ * happens to the database in between; a command that fails at run time
+ * (e.g. no such key) doesn't undo the others. A queued line that isn't a
+ * valid command makes EXEC discard the whole transaction.
+ * With a command log, each command that changes the database is logged before
+ * it runs, and a transaction is logged between MULTI and EXEC so replay only
+ * applies it if it was logged in full.
+ * Before each command the session removes keys whose deadline has passed;
+ * with a command log each one is logged as a DEL. A replaying session leaves
+ * the clock alone - keys only expire in replay where the log says they did.
+ * Sessions on different threads may share a database. A command runs holding
+ * the locks of the keys it names, or every lock if it names none, and its
+ * log record is written under the same locks, so the log puts commands on
+ * the same key in the order they ran.
+ * Each command run, apart from replay, is timed into the stats of its kind,
+ * from before it waits for locks to after it releases them; a queued
+ * command is timed from when EXEC reaches it.
+ */
+
+public class Session {
+	private static final int EXPIRY_BATCH = 32; //Most expired keys removed before a command that names keys
+
+	private final CrunchDB db;
+	private final CommandRegistry commands;
+	private final ResponseWriter out;
+	private CommandLog log; //NB null if changes aren't logged
+	private boolean replaying; //Lines come from the command log, so no time passes
+
+	private List<Command.Arguments> queue; //Commands waiting for EXEC - NB null when not in a transaction
+	private boolean queueInvalid; //A queued line wasn't a valid command, so EXEC won't run any of them
+
+	public Session(CrunchDB db, CommandRegistry commands, ResponseWriter out) {
+		//Constructor method
+		//@param db the database
+		//@param commands the commands that can be run
+		//@param out where responses are written
+
+		this.db = db;
+		this.commands = commands;
+		this.out = out;
+	}
+
+	public void setLog(CommandLog log) {
+		//Setter method for log
+		//@param log the command log to record changes in - NB null to stop logging
+
+		this.log = log;
+	}
+
+	public void setReplaying(boolean replaying) {
+		//Setter method for replaying
+		//@param replaying true if the lines are records from the command log
+
+		this.replaying = replaying;
+	}
+
+	public boolean execute(String line) {
+		//Runs or queues one line of input
+		//@param line the line typed
+		//@return false once a command that ends the session is run
+
+		String[] tokens = CommandRegistry.tokenize(line);
+		if(tokens.length == 1){
+			String verb = tokens[0].toUpperCase();
+			if(verb.equals("MULTI")){
+				multi();
+				return true;
+			} else if(verb.equals("EXEC")){
+				exec();
+				return true;
+			} else if(verb.equals("DISCARD")){
+				discard();
+				return true;
+			}
+		}
+
+		Command.Arguments args = commands.parse(line);
+
+		if(args == null){
+			if(queue != null) queueInvalid = true;
+			out.error(CommandRegistry.USAGE_ERROR);
+			out.println();
+		} else if(queue != null && !args.getCommand().isExit()){
+			queue.add(args);
+			out.println("queued").println();
+		} else {
+			Command command = args.getCommand();
+			long started = System.nanoTime();
+			long errors = out.getErrors();
+			long written = out.getWritten();
+			long now = replaying ? 0 : System.currentTimeMillis();
+			args.setTime(now);
+			List<String> keys = command.isExclusive() ? null : args.getKeys();
+
+			expireSome(now, keys);
+			int[] held = keys == null ? db.getLocks().lockAll() : db.getLocks().lock(keys);
+			try{
+				prepare(now, keys);
+				String record = log != null && command.isLogged() ? command.logLine(db, args, now) : null;
+				number(args, record);
+
+				command.run(db, args, out);
+
+				if(log != null && command.isLogRewrite()){
+					log.rewrite(db);
+				}
+			} finally {
+				db.getLocks().unlock(held);
+			}
+			record(command, started, errors, written);
+			return !command.isExit();
+		}
+
+		return true;
+	}
+
+	private void multi() {
+		//Starts a transaction
+
+		if(queue != null){
+			out.error("already in transaction");
+		} else {
+			queue = new ArrayList<Command.Arguments>();
+			queueInvalid = false;
+			out.println("ok");
+		}
+
+		out.println();
+	}
+
+	private void exec() {
+		//Runs every queued command, one response after another
+
+		if(queue == null){
+			out.error("not in transaction");
+			out.println();
+			return;
+		}
+
+		List<Command.Arguments> queued = queue;
+		queue = null;
+
+		if(queueInvalid){
+			out.error("transaction discarded");
+			out.println();
+		} else if(queued.size() == 0){
+			out.println("no commands queued").println();
+		} else {
+			boolean rewrite = false;
+			boolean logged = false;
+			boolean allKeys = false;
+			List<String> keys = new ArrayList<String>();
+			long now = replaying ? 0 : System.currentTimeMillis();
+			for(Command.Arguments next: queued){
+				if(next.getCommand().isLogRewrite()) rewrite = true;
+				if(next.getCommand().isLogged()) logged = true;
+				if(next.getCommand().isExclusive()) allKeys = true;
+
+				keys.addAll(next.getKeys());
+				next.setTime(now);
+			}
+			if(allKeys){
+				keys = null;
+			}
+
+			//The whole transaction runs at one time under every lock it needs, so expiring up front covers every command in it
+			expireSome(now, keys);
+			int[] held = keys == null ? db.getLocks().lockAll() : db.getLocks().lock(keys);
+			try{
+				prepare(now, keys);
+
+				//The log is held for the whole transaction so no other session's records land between MULTI and EXEC
+				boolean logging = log != null && logged && !rewrite;
+				if(logging){
+					synchronized(log){
+						runQueued(queued, true);
+					}
+				} else {
+					runQueued(queued, false);
+				}
+
+				if(log != null && rewrite){
+					//The log is rebuilt from the state the whole transaction left behind
+					log.rewrite(db);
+				}
+			} finally {
+				db.getLocks().unlock(held);
+			}
+		}
+	}
+
+	private void runQueued(List<Command.Arguments> queued, boolean logging) {
+		//Runs the queued commands of a transaction - NB holding their locks
+		//@param queued the commands
+		//@param logging true to log them between MULTI and EXEC
+
+		//Each record is written just before its command runs, so it sees what earlier commands did
+		boolean opened = false; //MULTI has been logged
+		for(Command.Arguments next: queued){
+			String record = logging && next.getCommand().isLogged() ? next.getCommand().logLine(db, next, next.getTime()) : null;
+			if(record != null && !opened){
+				log.append("MULTI");
+				opened = true;
+			}
+			number(next, record);
+
+			long started = System.nanoTime();
+			long errors = out.getErrors();
+			long written = out.getWritten();
+			next.getCommand().run(db, next, out);
+			record(next.getCommand(), started, errors, written);
+		}
+
+		if(opened){
+			log.append("EXEC");
+		}
+	}
+
+	private void number(Command.Arguments args, String record) {
+		//Numbers a command among those of every session and logs its record
+		//With a command log the number is drawn holding the log, so new keys are listed in the order replay adds them
+		//@param args the arguments of the command
+		//@param record its log record - NB null if it isn't logged
+
+		if(record == null){
+			args.setSequence(db.nextSequence());
+			return;
+		}
+
+		synchronized(log){
+			args.setSequence(db.nextSequence());
+			log.append(record);
+		}
+	}
+
+	private void record(Command command, long started, long errors, long written) {
+		//Adds a call to the stats of its command
+		//@param command the command run
+		//@param started System.nanoTime() before it
+		//@param errors errors written before it
+		//@param written output written before it
+
+		if(replaying || !command.isTimed()) return;
+
+		command.getStats().record(System.nanoTime() - started, out.getErrors() != errors, out.getWritten() - written);
+	}
+
+	public boolean inTransaction() {
+		//Checks whether commands are being queued
+		//@return true between MULTI and EXEC or DISCARD
+
+		return queue != null;
+	}
+
+	private void expireSome(long now, List<String> keys) {
+		//Removes up to EXPIRY_BATCH keys whose deadline has passed, each under its own lock - NB before taking the command's locks
+		//@param now the time in ms
+		//@param keys the keys the command names - NB null if it holds every lock, which expires everything due anyway
+
+		if(replaying || keys == null){
+			return;
+		}
+
+		for(int i = 0; i < EXPIRY_BATCH; i++){
+			String next = db.dueKey(now);
+			if(next == null){
+				return;
+			}
+
+			int[] held = db.getLocks().lock(next);
+			try{
+				expire(next, now);
+			} finally {
+				db.getLocks().unlock(held);
+			}
+		}
+	}
+
+	private void prepare(long now, List<String> keys) {
+		//Catches the database up with time before a command runs - NB called holding the command's locks
+		//Every key the command names is checked, so it never sees one that has expired. A command holding every
+		//lock may look at all keys (e.g. LIST KEYS, SNAPSHOT), so every expired key goes and finished archives are unpinned.
+		//@param now the time in ms
+		//@param keys the keys the command names - NB null if it holds every lock
+
+		if(keys == null){
+			db.releaseArchives();
+		}
+
+		if(replaying){
+			return;
+		}
+
+		if(keys == null){
+			String next;
+			while((next = db.dueKey(now)) != null){
+				expire(next, now);
+			}
+		} else {
+			for(String next: keys){
+				expire(next, now);
+			}
+		}
+	}
+
+	private void expire(String key, long now) {
+		//Removes a key if its deadline has passed, logging it as deleted - NB called holding the key's lock
+		//@param key the key
+		//@param now the time in ms
+
+		if(db.expireKey(key, now) && log != null){
+			log.append("DEL " + key);
+		}
+	}
+
+	private void discard() {
+		//Drops the queued commands without running them
+
+		if(queue == null){
+			out.error("not in transaction");
+		} else {
+			queue = null;
+			out.println("ok");
+		}
+
+		out.println();
+	}
+}
@@ -1,21 +1,47 @@
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
 import java.util.Collections;
+import java.util.Arrays;
 import java.io.PrintWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.Scanner;
+import java.io.FileWriter;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 /**
  * Snapshot deals with storing the id and current state of the database.
  * As well as storing this data, the Snapshot class should manage operations
  * related to snapshots.
+ *
+ * Snapshots can be archived as text (key|v1,v2,...) or in a binary format:
+ * a header (magic "CRDB", version, flags, entry count), a key directory
+ * (key, value count, block offset and length for each entry, then a CRC32 of
+ * the header and directory) and one block of zigzag varint values per entry,
+ * each followed by its own CRC32. RESTORE detects the format from the magic.
  */
 
 public class Snapshot {
+	private static final int MAGIC = 0x43524442; //"CRDB"
+	private static final short VERSION = 1;
+	private static final int MIN_RECORD = 24; //Bytes an entry takes at least - key length, value count, offset and block length, then the block CRC
+
 	private int id;
-	private List<Entry> entries;
+	private Map<String, Entry> entries; //NB may be shared with the current state and other snapshots - never change it in place
 
-	public Snapshot(int id, List<Entry> entries) {
+	public Snapshot(int id, Map<String, Entry> entries) {
 		//Constructor method
 
 		this.id = id;
@@ -32,114 +58,518 @@ public class Snapshot {
 	public void removeKey(String key) {
 		//Finds and removes the key from entries stored in snapshot
 		//We don't care in this function whether key exists or not as only purge calls this method and that alwyas prints ok
+		//NB the map may be shared so we copy it, but only when the key is actually there
 		//@param key the key to remove
 
-		List<Entry> temp = new ArrayList<Entry>(entries);
-
-		for(int i = 0; i < entries.size(); i++){
-			if(entries.get(i).getKey().equals(key)){
-				temp.remove(i);
-			}
+		if(!entries.containsKey(key)){
+			return;
 		}
 
+		Map<String, Entry> temp = new HashMap<String, Entry>(entries);
+		temp.remove(key);
+
 		entries = temp;
 	}
 
-	public List<Entry> rollback() {
-		//Returns list of entries for the restored state
-		//Essentially a getter method
-		//@return the list of entries
+	public Map<String, Entry> rollback() {
+		//Returns the entries for the restored state keyed by key
+		//Essentially a getter method - NB the map is shared, callers must copy before changing it
+		//@return the entries
 
 		return entries;
 	}
 
-	public void archive(String filename) {
-		//Saves snapshot to the designated file
+	public int size() {
+		//Counts the entries in the snapshot
+		//@return the number of entries
+
+		return entries.size();
+	}
+
+	public boolean archive(String filename) {
+		//Saves snapshot to the designated file as key|v1,v2,... lines
 		//@param filename the name of the file - NB may not exist and need to create
+		//@return false if the file couldn't be written
+
+		return archive(filename, null);
+	}
+
+	public boolean archive(String filename, ArchiveJob job) {
+		//Saves snapshot as text, counting each entry written
+		//@param filename the name of the file
+		//@param job the job to report progress to - NB null if nobody is watching
+		//@return false if the file couldn't be written
 
 		File output = new File(filename);
 
 		try{
-			PrintWriter writer = new PrintWriter(output);
+			PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(output), 1 << 16));
 
-			String printEntries = Entry.listAllEntries(entries).replace(" [", "|");
-			printEntries = printEntries.replace(" ",",");
-			printEntries = printEntries.replace("]", "");
-			writer.println(printEntries);
+			boolean first = true;
+			for(Entry next: Entry.inOrder(entries.values())){
+				if(!first) writer.print('\n');
+				first = false;
+
+				writer.print(next.getKey());
+				writer.print('|');
+				IntList values = next.getIntValues();
+				for(int i = 0; i < values.size(); i++){
+					if(i != 0) writer.print(',');
+					writer.print(values.get(i));
+				}
+				if(job != null) job.written();
+			}
+			writer.println();
 			writer.close();
 
-			System.out.println("ok");
-		} catch(FileNotFoundException e){
-			System.out.println("file not found");
+			return !writer.checkError();
+		} catch(IOException e){
+			return false;
+		}
+	}
+
+	public boolean archiveBinary(String filename) {
+		//Saves snapshot to the designated file in the binary format
+		//@param filename the name of the file - NB may not exist and need to create
+		//@return false if the file couldn't be written
+
+		return archiveBinary(filename, null);
+	}
+
+	public boolean archiveBinary(String filename, ArchiveJob job) {
+		//Saves snapshot in the binary format, counting each entry written
+		//@param filename the name of the file
+		//@param job the job to report progress to - NB null if nobody is watching
+		//@return false if the file couldn't be written
+
+		List<Entry> archived = Entry.inOrder(entries.values());
+		List<IntList> values = new ArrayList<IntList>(archived.size());
+		List<byte[]> keys = new ArrayList<byte[]>(archived.size());
+
+		//The directory goes first, so we size every block before writing anything
+		long headerLength = 4 + 2 + 2 + 4;
+		for(Entry next: archived){
+			values.add(next.getIntValues());
+			keys.add(next.getKey().getBytes(StandardCharsets.UTF_8));
+			headerLength += 4 + keys.get(keys.size()-1).length + 4 + 8 + 4;
+		}
+		headerLength += 4; //Directory CRC
+
+		//A failed write leaves no truncated archive behind
+		try(DataOutputStream writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1 << 16))){
+			CRC32 crc = new CRC32();
+			ByteBuffer header = ByteBuffer.allocate((int) headerLength);
+
+			header.putInt(MAGIC);
+			header.putShort(VERSION);
+			header.putShort((short) 0); //Flags - reserved
+			header.putInt(archived.size());
+
+			long offset = headerLength;
+			for(int i = 0; i < archived.size(); i++){
+				int blockLength = encodedLength(values.get(i));
+				header.putInt(keys.get(i).length);
+				header.put(keys.get(i));
+				header.putInt(values.get(i).size());
+				header.putLong(offset);
+				header.putInt(blockLength);
+				offset += blockLength + 4; //Block and its CRC
+			}
+
+			crc.update(header.array(), 0, header.position());
+			header.putInt((int) crc.getValue());
+			writer.write(header.array());
+
+			byte[] buffer = new byte[1 << 16];
+			for(IntList next: values){
+				crc.reset();
+				int used = 0;
+				for(int i = 0; i < next.size(); i++){
+					if(used > buffer.length-5){
+						crc.update(buffer, 0, used);
+						writer.write(buffer, 0, used);
+						used = 0;
+					}
+					used = putVarint(buffer, used, next.get(i));
+				}
+				crc.update(buffer, 0, used);
+				writer.write(buffer, 0, used);
+				writer.writeInt((int) crc.getValue());
+				if(job != null) job.written();
+			}
+		} catch(IOException e){
+			new File(filename).delete();
+			return false;
+		}
+
+		return true;
+	}
+
+	private static int putVarint(byte[] buffer, int position, int value) {
+		//Writes value zigzag encoded as a varint - small magnitudes take fewer bytes
+		//@return the position after the value
+
+		int zigzag = (value << 1) ^ (value >> 31);
+		while((zigzag & ~0x7F) != 0){
+			buffer[position++] = (byte) ((zigzag & 0x7F) | 0x80);
+			zigzag >>>= 7;
+		}
+		buffer[position++] = (byte) zigzag;
+
+		return position;
+	}
+
+	private static int encodedLength(IntList values) {
+		//Works out how many bytes the varints for values take
+		//@return the number of bytes
+
+		int length = 0;
+		for(int i = 0; i < values.size(); i++){
+			int zigzag = (values.get(i) << 1) ^ (values.get(i) >> 31);
+			length += zigzag == 0 ? 1 : (38 - Integer.numberOfLeadingZeros(zigzag)) / 7;
+		}
+
+		return length;
+	}
+
+	private static List<Entry> restoreBinary(FileChannel channel) throws IOException {
+		//Loads a binary archive through memory maps of windows of up to 2GB, reading each block as a slice of one
+		//Nothing sized by the directory is allocated until its CRC has been checked
+		//@param channel the open archive
+		//@return list of entries - NB null if anything is invalid
+
+		long fileLength = channel.size();
+		MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fileLength, Integer.MAX_VALUE));
+		long windowStart = 0;
+		ByteBuffer header = window.duplicate();
+		List<Entry> newEntries = new ArrayList<Entry>();
+
+		try{
+			if(header.getInt() != MAGIC || header.getShort() != VERSION){
+				return null;
+			}
+			header.getShort(); //Flags
+			int count = header.getInt();
+			//Each entry takes at least MIN_RECORD bytes of the file, so a larger count can't be true
+			if(count < 0 || count > (fileLength - header.position()) / MIN_RECORD) return null;
+			int directoryStart = header.position();
+
+			//First pass only finds where the directory ends, so its CRC can be checked
+			for(int i = 0; i < count; i++){
+				int keyLength = header.getInt();
+				if(keyLength < 0 || keyLength > header.remaining() - 16) return null;
+				header.position(header.position() + keyLength + 16);
+			}
+
+			CRC32 crc = new CRC32();
+			ByteBuffer directory = header.duplicate();
+			directory.flip();
+			crc.update(directory);
+			if(header.getInt() != (int) crc.getValue()){
+				return null;
+			}
+			header.position(directoryStart);
+
+			String[] keys = new String[count];
+			int[] lengths = new int[count];
+			long[] offsets = new long[count];
+			int[] blockLengths = new int[count];
+
+			for(int i = 0; i < count; i++){
+				byte[] key = new byte[header.getInt()];
+				header.get(key);
+				keys[i] = new String(key, StandardCharsets.UTF_8);
+				if(!typable(keys[i])) return null;
+				lengths[i] = header.getInt();
+				offsets[i] = header.getLong();
+				blockLengths[i] = header.getInt();
+				//Every varint takes at least a byte, and a block and its CRC must fit in one window
+				if(lengths[i] < 0 || blockLengths[i] < 0 || lengths[i] > blockLengths[i] || blockLengths[i] > Integer.MAX_VALUE - 4
+					|| offsets[i] < 0 || offsets[i] + blockLengths[i] + 4 > fileLength){
+					return null;
+				}
+			}
+
+			for(int i = 0; i < count; i++){
+				long blockEnd = offsets[i] + blockLengths[i] + 4;
+				if(offsets[i] < windowStart || blockEnd > windowStart + window.capacity()){
+					windowStart = offsets[i];
+					window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(fileLength - windowStart, Integer.MAX_VALUE));
+				}
+				ByteBuffer block = window.duplicate();
+				int blockStart = (int) (offsets[i] - windowStart);
+				block.limit(blockStart + blockLengths[i] + 4).position(blockStart);
+				block = block.slice();
+
+				ByteBuffer encoded = block.duplicate();
+				encoded.limit(blockLengths[i]);
+				crc.reset();
+				crc.update(encoded);
+				if(block.getInt(blockLengths[i]) != (int) crc.getValue()){
+					return null;
+				}
+
+				IntList values = new IntList(lengths[i]);
+				for(int j = 0; j < lengths[i]; j++){
+					int zigzag = 0;
+					int shift = 0;
+					byte next;
+					do{
+						if(block.position() >= blockLengths[i] || shift > 28) return null;
+						next = block.get();
+						zigzag |= (next & 0x7F) << shift;
+						shift += 7;
+					} while((next & 0x80) != 0);
+					values.add((zigzag >>> 1) ^ -(zigzag & 1));
+				}
+				if(block.position() != blockLengths[i]) return null;
+
+				newEntries.add(new Entry(keys[i], values));
+			}
+		} catch(BufferUnderflowException e){
+			return null;
+		}
+
+		return newEntries;
+	}
+
+	private static boolean typable(String key) {
+		//Checks that a restored key could have been typed, so the command log can write it back as a command
+		//A space would split it into two arguments on replay and a line break would end the record
+		//@param key the key
+		//@return false if it holds a space or line break
+
+		for(int i = 0; i < key.length(); i++){
+			char next = key.charAt(i);
+			if(next == ' ' || next == '\n' || next == '\r') return false;
 		}
 
+		return true;
 	}
 
-	public static List<Entry> restore(String filename) {
-		//Loads and restore a snapshot from file
+	public static List<Entry> restore(String filename, ResponseWriter out) {
+		//Loads and restore a snapshot from file - binary archives are detected by their magic
 		//@param filename name of file
+		//@param out where problems with the file are reported
 		//@return list of entries - NB db deals with the list and reassigns it
 
-		File input = new File(filename);
-		List<Entry> newEntries = new ArrayList<Entry>();
-		Boolean noError = true; //If any invalid input occurs we don't restore anything
+		FileChannel channel;
+		try{
+			channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+		} catch(IOException e){
+			out.error("file not found");
+			return new ArrayList<Entry>();
+		}
 
+		List<Entry> newEntries;
 		try{
-			Scanner scan = new Scanner(input);
-			while(scan.hasNextLine()){
-				String inpLine = scan.nextLine();
-				String[] line = inpLine.split("[|,]");
-
-				if(line.length < 2){
-					//An invalid line
-					System.out.println("invalid input");
-					noError = false;
-				} else {
-					List<Integer> values = new ArrayList<Integer>();
-					Boolean validString = true;
-
-					for(int i = 1; i < line.length; i++){
-						try{
-							values.add(Integer.parseInt(line[i]));
-						} catch(NumberFormatException e){
-							System.out.println("invalid input");
-							validString = false;
-							noError = false;
-							break;
-						}
+			ByteBuffer magic = ByteBuffer.allocate(4);
+			while(magic.hasRemaining() && channel.read(magic) >= 0);
+
+			if(!magic.hasRemaining() && magic.getInt(0) == MAGIC){
+				newEntries = restoreBinary(channel);
+				if(newEntries == null){
+					out.error("invalid input");
+				}
+			} else {
+				channel.position(0);
+				newEntries = new TextReader(channel, out).read();
+			}
+		} catch(IOException e){
+			out.error("file not found");
+			newEntries = null;
+		} finally {
+			try{
+				channel.close();
+			} catch(IOException e){
+				//Nothing left to read from it anyway
+			}
+		}
+
+		return newEntries == null ? new ArrayList<Entry>() : newEntries;
+	}
+
+	private static class TextReader {
+		//Streams a key|v1,v2,... text archive byte by byte from a 64KB buffer
+		//Numbers are parsed in place, so no String is built per line or per value
+		//Follows what split("[|,]") and Integer.parseInt did: trailing empty fields are ignored,
+		//any other empty or non-integer field makes the line invalid, and a line needs a key and a value
+		//A key can't hold a space, as it couldn't be typed or written back to the command log
+		//Each invalid line prints "invalid input", and if there were any we restore nothing
+
+		private final FileChannel channel;
+		private final ResponseWriter out;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+
+		private byte[] key = new byte[64];
+		private int keyLength;
+		private IntList values;
+		private boolean inKey; //Still reading the first field
+		private boolean lineInvalid;
+		private boolean lineHasValue;
+		private int pendingEmpty; //Empty fields seen since the last value - fine if trailing, invalid otherwise
+
+		//The field being parsed
+		private int fieldLength;
+		private boolean negative;
+		private long number;
+		private boolean sawDigit;
+		private boolean fieldInvalid;
+
+		private TextReader(FileChannel channel, ResponseWriter out) {
+			//Constructor method
+			//@param channel the open archive
+			//@param out where invalid lines are reported
+
+			this.channel = channel;
+			this.out = out;
+		}
+
+		private List<Entry> read() throws IOException {
+			//Reads every line
+			//@return list of entries - NB null if any line was invalid
+
+			List<Entry> newEntries = new ArrayList<Entry>();
+			boolean noError = true;
+			boolean lineStarted = false;
+			boolean lastWasCarriageReturn = false;
+			startLine();
+
+			while(channel.read(buffer) >= 0){
+				buffer.flip();
+				while(buffer.hasRemaining()){
+					byte next = buffer.get();
+
+					if(next == '\n' && lastWasCarriageReturn){
+						//Second half of \r\n - the line already ended
+						lastWasCarriageReturn = false;
+						continue;
 					}
+					lastWasCarriageReturn = next == '\r';
 
-					if(validString){
-						newEntries.add(new Entry(line[0], values));
+					if(next == '\n' || next == '\r'){
+						if(!endLine(newEntries, noError)) noError = false;
+						startLine();
+						lineStarted = false;
+					} else {
+						accept(next);
+						lineStarted = true;
 					}
 				}
+				buffer.clear();
+			}
+
+			if(lineStarted){
+				//Last line had no line break
+				if(!endLine(newEntries, noError)) noError = false;
+			}
+
+			return noError ? newEntries : null;
+		}
+
+		private void startLine() {
+			//Resets the state for a new line
+
+			keyLength = 0;
+			values = new IntList();
+			inKey = true;
+			lineInvalid = false;
+			lineHasValue = false;
+			pendingEmpty = 0;
+			startField();
+		}
+
+		private void startField() {
+			//Resets the state for a new value field
+
+			fieldLength = 0;
+			negative = false;
+			number = 0;
+			sawDigit = false;
+			fieldInvalid = false;
+		}
 
+		private void accept(byte next) {
+			//Handles one byte that isn't a line break
+			//@param next the byte
+
+			if(next == '|' || next == ','){
+				endField();
+				return;
+			}
+
+			if(inKey){
+				if(next == ' ') lineInvalid = true;
+				if(keyLength == key.length) key = Arrays.copyOf(key, keyLength*2);
+				key[keyLength++] = next;
+				return;
+			}
 
+			if(lineInvalid || fieldInvalid){
+				fieldLength++;
+				return;
 			}
-		} catch(FileNotFoundException e){
-			System.out.println("file not found");
+
+			if(fieldLength == 0 && (next == '-' || next == '+')){
+				negative = next == '-';
+			} else if(next >= '0' && next <= '9'){
+				number = number*10 + (next - '0');
+				sawDigit = true;
+				if(number > (negative ? 2147483648L : Integer.MAX_VALUE)) fieldInvalid = true;
+			} else {
+				fieldInvalid = true;
+			}
+			fieldLength++;
 		}
 
-		if(!noError){
-			newEntries.clear();
+		private void endField() {
+			//Finishes the key or a value field
+
+			if(inKey){
+				inKey = false;
+				return;
+			}
+
+			if(fieldLength == 0){
+				pendingEmpty++;
+			} else {
+				if(pendingEmpty > 0 || fieldInvalid || !sawDigit){
+					lineInvalid = true;
+				} else if(!lineInvalid){
+					values.add((int) (negative ? -number : number));
+				}
+				pendingEmpty = 0;
+				lineHasValue = true;
+			}
+			startField();
 		}
-		return newEntries;
-	}
 
-	public static String listAllSnapshots(List<Snapshot> snapshots) {
-		//Formats the snapshot IDS for display
-		//@param snapshots the snapshots to display
-		//@return the String to display - NB ends with no new line
+		private boolean endLine(List<Entry> newEntries, boolean noError) {
+			//Finishes a line and keeps its entry if everything so far was valid
+			//@param newEntries the entries restored so far
+			//@param noError false once an earlier line was invalid - NB we stop keeping entries then
+			//@return false if this line was invalid
 
-		String listSnapshot = "";
+			endField();
+			if(lineInvalid || !lineHasValue){
+				out.error("invalid input");
+				return false;
+			}
 
-		for(int i = 0; i < snapshots.size(); i++){
-			listSnapshot += snapshots.get(i).id;
-			if(i != snapshots.size()-1){
-				listSnapshot += "\n";
+			if(noError){
+				newEntries.add(new Entry(new String(key, 0, keyLength, Charset.defaultCharset()), values));
 			}
+			return true;
 		}
+	}
 
-		return listSnapshot;
+	public static void listAllSnapshots(List<Snapshot> snapshots, ResponseWriter out) {
+		//Formats the snapshot IDS for display, one per line
+		//@param snapshots the snapshots to display
+		//@param out where the ids are written
+
+		for(Snapshot nextSnapshot: snapshots){
+			out.println(nextSnapshot.id);
+		}
 	}
 }
@@ -0,0 +1,248 @@
+import java.util.Map;
+import java.util.HashMap;
+
+/**
+ * TimerWheel keeps a deadline for each key and hands back the keys whose
+ * deadlines have passed, in O(1) time per key.
+ * It is a hierarchical timing wheel: level 0 has 64 slots of 1 ms, level 1
+ * 64 slots of 64 ms and so on. A timer sits in the lowest level whose slots
+ * still cover its deadline within the current turn of the level above, and
+ * moves down a level each time the wheel reaches its slot, so each timer is
+ * moved at most once per level. Stretches of time with nothing due are
+ * skipped a whole level slot at a time.
+ * Each slot is a circular doubly linked list, so adding or cancelling a timer
+ * never searches.
+ * Sessions on different threads share one wheel, so every public method
+ * holds its lock.
+ */
+
+public class TimerWheel {
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int LEVELS = 8; //64^8 ms - far more than any deadline we can be given
+	private static final long MAX_DELAY = 1L << (SLOT_BITS*LEVELS - 2);
+
+	private static final int DUE = -1; //Level of a timer that has fired but hasn't been handed back yet
+
+	private static class Timer {
+		//One key's deadline - also its own link in the list it is in
+
+		private final String key;
+		private long deadline;
+		private int level;
+		private Timer previous;
+		private Timer next;
+
+		private Timer(String key) {
+			//Constructor method - NB a timer on its own is a list head
+			//@param key the key that expires
+
+			this.key = key;
+			this.previous = this;
+			this.next = this;
+		}
+	}
+
+	private final Timer[][] slots; //Head of each slot's list
+	private final int[] counts; //Timers in each level, to skip empty levels
+	private final Timer due; //Head of the list of timers that have fired
+	private final Map<String, Timer> timers; //Every timer by key
+	private long time; //The wheel has fired every timer up to and including this ms
+
+	public TimerWheel() {
+		//Constructor method
+
+		this.slots = new Timer[LEVELS][SLOTS];
+		for(int level = 0; level < LEVELS; level++){
+			for(int slot = 0; slot < SLOTS; slot++){
+				slots[level][slot] = new Timer(null);
+			}
+		}
+		this.counts = new int[LEVELS];
+		this.due = new Timer(null);
+		this.timers = new HashMap<String, Timer>();
+		this.time = 0;
+	}
+
+	public synchronized void schedule(String key, long deadline) {
+		//Sets or moves the deadline of a key
+		//@param key the key
+		//@param deadline when it expires, in ms
+
+		Timer timer = timers.get(key);
+		if(timer == null){
+			timer = new Timer(key);
+			timers.put(key, timer);
+		} else {
+			unlink(timer);
+		}
+
+		timer.deadline = Math.min(deadline, time + MAX_DELAY);
+		place(timer);
+	}
+
+	public synchronized boolean cancel(String key) {
+		//Removes the deadline of a key
+		//@param key the key
+		//@return false if it didn't have one
+
+		Timer timer = timers.remove(key);
+		if(timer == null){
+			return false;
+		}
+
+		unlink(timer);
+		return true;
+	}
+
+	public synchronized long deadline(String key) {
+		//Finds the deadline of a key
+		//@param key the key
+		//@return the deadline in ms - NB -1 if it doesn't have one
+
+		Timer timer = timers.get(key);
+		return timer == null ? -1 : timer.deadline;
+	}
+
+	public synchronized boolean isDue(String key, long now) {
+		//Checks whether a key's deadline has passed, whether or not the wheel has got to it yet
+		//@param key the key
+		//@param now the time in ms
+		//@return true if it has expired
+
+		Timer timer = timers.get(key);
+		return timer != null && timer.deadline <= now;
+	}
+
+	public synchronized int size() {
+		//Counts the keys with deadlines
+		//@return the number of timers
+
+		return timers.size();
+	}
+
+	public synchronized Map<String, Long> deadlines() {
+		//Collects every deadline, e.g. to save them
+		//@return deadline in ms by key
+
+		Map<String, Long> deadlines = new HashMap<String, Long>(timers.size()*2);
+		for(Timer next: timers.values()){
+			deadlines.put(next.key, next.deadline);
+		}
+
+		return deadlines;
+	}
+
+	public synchronized void clear() {
+		//Removes every deadline
+
+		for(Timer next: timers.values()){
+			unlink(next);
+		}
+		timers.clear();
+	}
+
+	public synchronized String peek(long now) {
+		//Turns the wheel to now and finds a key whose deadline has passed - NB it keeps its deadline until cancelled
+		//@param now the time in ms
+		//@return the key - NB null if none are due
+
+		advance(now);
+
+		//Another thread may have turned the wheel a little past our now
+		for(Timer timer = due.next; timer != due; timer = timer.next){
+			if(timer.deadline <= now) return timer.key;
+		}
+
+		return null;
+	}
+
+	private void advance(long now) {
+		//Fires every timer with a deadline up to now, skipping levels with nothing in them
+		//@param now the time in ms
+
+		while(time < now){
+			int lowest = 0;
+			while(lowest < LEVELS && counts[lowest] == 0) lowest++;
+
+			if(lowest == LEVELS){
+				//Nothing left in the wheel
+				time = now;
+				return;
+			}
+
+			//Nothing can happen before the next slot of the lowest level in use
+			long step = 1L << (SLOT_BITS*lowest);
+			long next = (time | (step-1)) + 1;
+			if(next > now){
+				time = now;
+				return;
+			}
+			time = next;
+
+			//Cascade from the top so timers moved down can still move again at this tick
+			for(int level = LEVELS-1; level >= 1; level--){
+				if((time & ((1L << (SLOT_BITS*level)) - 1)) == 0){
+					cascade(level, (int) (time >>> (SLOT_BITS*level)) & (SLOTS-1));
+				}
+			}
+			cascade(0, (int) time & (SLOTS-1));
+		}
+	}
+
+	private void cascade(int level, int slot) {
+		//Takes every timer out of a slot and places it again relative to the current time
+		//@param level the level of the slot
+		//@param slot the slot
+
+		Timer head = slots[level][slot];
+		while(head.next != head){
+			Timer timer = head.next;
+			unlink(timer);
+			place(timer);
+		}
+	}
+
+	private void place(Timer timer) {
+		//Puts a timer in the level and slot that covers its deadline, or in the due list if it has passed
+		//@param timer the timer - NB not in any list
+
+		if(timer.deadline <= time){
+			timer.level = DUE;
+			link(due, timer);
+			return;
+		}
+
+		//The lowest level where the deadline is in the same turn of the level above as now
+		int level = 0;
+		while(level < LEVELS-1 && (timer.deadline >>> (SLOT_BITS*(level+1))) != (time >>> (SLOT_BITS*(level+1)))){
+			level++;
+		}
+
+		timer.level = level;
+		counts[level]++;
+		link(slots[level][(int) (timer.deadline >>> (SLOT_BITS*level)) & (SLOTS-1)], timer);
+	}
+
+	private static void link(Timer head, Timer timer) {
+		//Adds a timer to the end of a list
+		//@param head the head of the list
+
+		timer.previous = head.previous;
+		timer.next = head;
+		head.previous.next = timer;
+		head.previous = timer;
+	}
+
+	private void unlink(Timer timer) {
+		//Takes a timer out of whatever list it is in
+
+		if(timer.level != DUE){
+			counts[timer.level]--;
+		}
+		timer.previous.next = timer.next;
+		timer.next.previous = timer.previous;
+		timer.previous = timer;
+		timer.next = timer;
+	}
+}
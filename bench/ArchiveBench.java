@@ -0,0 +1,72 @@
+import java.io.File;
+import java.io.Writer;
+import java.util.Map;
+import java.util.HashMap;
+
+/**
+ * ArchiveBench times writing a snapshot to file and reading it back, in
+ * the text and binary formats, for snapshots of different sizes. Entries
+ * have ten values each. The files go in the temporary directory and are
+ * deleted on exit.
+ */
+
+public class ArchiveBench {
+	public static void register(Bench bench) {
+		//Declares the archive benchmarks
+		//@param bench the harness
+
+		bench.add("snapshot.archive", ArchiveBench::roundSize, (params, ops) -> {
+			Snapshot snapshot = snapshot(params.getInt("entries"));
+			String file = file(params);
+			boolean binary = params.get("format").equals("binary");
+			return i -> Bench.consume(binary ? snapshot.archiveBinary(file) : snapshot.archive(file));
+		}, "entries=1000,100000", "format=text,binary");
+
+		bench.add("snapshot.restore", ArchiveBench::roundSize, (params, ops) -> {
+			Snapshot snapshot = snapshot(params.getInt("entries"));
+			String file = file(params);
+			boolean binary = params.get("format").equals("binary");
+			if(binary) snapshot.archiveBinary(file);
+			else snapshot.archive(file);
+
+			ResponseWriter out = new ResponseWriter(Writer.nullWriter(), false);
+			return i -> Bench.consume(Snapshot.restore(file, out).size());
+		}, "entries=1000,100000", "format=text,binary");
+	}
+
+	private static int roundSize(Bench.Params params) {
+		//Fewer operations for big snapshots
+		//@return operations per round
+
+		return params.getInt("entries") <= 1000 ? 100 : 2;
+	}
+
+	private static String file(Bench.Params params) {
+		//Picks the file a benchmark writes
+		//@return its path
+
+		File file = new File(System.getProperty("java.io.tmpdir"), "crunchdb-bench-" + params.getInt("entries") + "." + params.get("format"));
+		file.deleteOnExit();
+
+		return file.getPath();
+	}
+
+	private static Snapshot snapshot(int entries) {
+		//Makes a snapshot of some entries with ten values each
+		//@param entries how many entries
+		//@return the snapshot
+
+		Map<String, Entry> map = new HashMap<String, Entry>(entries*2);
+		for(int i = 0; i < entries; i++){
+			IntList values = new IntList(10);
+			for(int j = 0; j < 10; j++){
+				values.add(i*10 + j);
+			}
+			Entry next = new Entry("k" + i, values);
+			next.setOrder(i);
+			map.put(next.getKey(), next);
+		}
+
+		return new Snapshot(1, map);
+	}
+}
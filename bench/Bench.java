@@ -0,0 +1,271 @@
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Bench is a small benchmark harness in the style of JMH, without needing
+ * anything outside the JDK: benchmarks are compiled with the rest of the
+ * sources and run with
+ *     javac -d out *.java bench/*.java && java -cp out Bench [regex] [--quick]
+ * Each benchmark has named parameters, e.g. size=10,1000,100000, and is run
+ * once for every combination of them. A fixture builds fresh state for a
+ * round of operations outside the timing, so operations that use up their
+ * state (POP, SORT...) are timed on the state they are meant to see. Rounds
+ * are run for a warmup period and then a measured period.
+ * For each combination it reports the mean and best ns per operation, the
+ * bytes allocated per operation and the allocation rate, measured on the
+ * benchmark thread, so a regression in either shows up as a number.
+ */
+
+public class Bench {
+	private static final long WARMUP_NANOS = 1000000000L;
+	private static final long MEASURE_NANOS = 2000000000L;
+	private static final int MIN_ROUNDS = 3;
+
+	public interface Op {
+		//One timed operation
+		//@param i which operation of the round this is, from 0
+
+		void run(int i) throws Exception;
+	}
+
+	public interface Fixture {
+		//Builds the state for one round - NB not timed
+		//@param params the parameters of this run
+		//@param ops how many operations the round will run
+		//@return the operation
+
+		Op prepare(Params params, int ops) throws Exception;
+	}
+
+	public interface RoundSize {
+		//Says how many operations make a round
+		//@param params the parameters of this run
+		//@return the number of operations
+
+		int of(Params params);
+	}
+
+	public static class Params {
+		//One combination of a benchmark's parameters
+
+		private final String[] names;
+		private final String[] values;
+
+		private Params(String[] names, String[] values) {
+			//Constructor method
+
+			this.names = names;
+			this.values = values;
+		}
+
+		public String get(String name) {
+			//Finds a parameter
+			//@param name its name
+			//@return its value in this run
+
+			for(int i = 0; i < names.length; i++){
+				if(names[i].equals(name)) return values[i];
+			}
+
+			throw new IllegalArgumentException("no parameter " + name);
+		}
+
+		public int getInt(String name) {
+			//Finds an integer parameter
+			//@param name its name
+			//@return its value in this run
+
+			return Integer.parseInt(get(name));
+		}
+
+		public String toString() {
+			//@return e.g. "keys=4 overlap=50"
+
+			StringBuilder text = new StringBuilder();
+			for(int i = 0; i < names.length; i++){
+				if(i != 0) text.append(' ');
+				text.append(names[i]).append('=').append(values[i]);
+			}
+
+			return text.toString();
+		}
+	}
+
+	private static class Benchmark {
+		//A named operation and the parameters it is run with
+
+		private final String name;
+		private final String[] axes; //Parameter names
+		private final String[][] choices; //Values of each parameter
+		private final RoundSize roundSize;
+		private final Fixture fixture;
+
+		private Benchmark(String name, RoundSize roundSize, Fixture fixture, String[] parameters) {
+			//Constructor method
+			//@param parameters each "name=value,value..."
+
+			this.name = name;
+			this.roundSize = roundSize;
+			this.fixture = fixture;
+			this.axes = new String[parameters.length];
+			this.choices = new String[parameters.length][];
+			for(int i = 0; i < parameters.length; i++){
+				String[] parts = parameters[i].split("=", 2);
+				axes[i] = parts[0];
+				choices[i] = parts[1].split(",");
+			}
+		}
+
+		private List<Params> combinations() {
+			//Every combination of the parameters, the last one changing fastest
+			//@return the combinations
+
+			List<Params> all = new ArrayList<Params>();
+			int[] at = new int[axes.length];
+			while(true){
+				String[] values = new String[axes.length];
+				for(int i = 0; i < axes.length; i++){
+					values[i] = choices[i][at[i]];
+				}
+				all.add(new Params(axes, values));
+
+				int next = axes.length-1;
+				while(next >= 0 && ++at[next] == choices[next].length){
+					at[next--] = 0;
+				}
+				if(next < 0) return all;
+			}
+		}
+	}
+
+	//Results are folded in here so the JIT can't drop the work that made them
+	private static long sink;
+
+	private final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+	private long warmup = WARMUP_NANOS;
+	private long measure = MEASURE_NANOS;
+
+	public void add(String name, RoundSize roundSize, Fixture fixture, String... parameters) {
+		//Declares a benchmark
+		//@param name e.g. "entry.pop"
+		//@param roundSize how many operations are timed per round
+		//@param fixture builds the state for a round
+		//@param parameters each "name=value,value..." - NB every combination is run
+
+		benchmarks.add(new Benchmark(name, roundSize, fixture, parameters));
+	}
+
+	public static void consume(long value) {
+		//Keeps a result alive
+		//@param value the result
+
+		sink += value;
+	}
+
+	public static void consume(Object value) {
+		//Keeps a result alive
+		//@param value the result - NB may be null
+
+		sink += value == null ? 1 : 2;
+	}
+
+	private static long allocated() {
+		//Counts the bytes the current thread has allocated so far
+		//@return the count - NB -1 if the JVM can't tell
+
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(threads instanceof com.sun.management.ThreadMXBean){
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+
+		return -1;
+	}
+
+	private double[] measure(Benchmark benchmark, Params params) throws Exception {
+		//Runs rounds of a benchmark, first to warm up and then timed
+		//@return mean ns/op, best ns/op, bytes/op and allocation MB/s - NB the last two are negative if unknown
+
+		int ops = Math.max(1, benchmark.roundSize.of(params));
+		run(benchmark, params, ops, warmup);
+		return run(benchmark, params, ops, measure);
+	}
+
+	private double[] run(Benchmark benchmark, Params params, int ops, long period) throws Exception {
+		//Runs rounds until enough time has been spent in the timed part
+		//@param ops operations per round
+		//@param period ns of timed work wanted
+		//@return mean ns/op, best ns/op, bytes/op and allocation MB/s
+
+		long timed = 0;
+		long bytes = 0;
+		long done = 0;
+		double best = Double.MAX_VALUE;
+		long stop = System.nanoTime() + period*3; //Slow fixtures mustn't keep us here forever
+
+		for(int round = 0; round < MIN_ROUNDS || (timed < period && System.nanoTime() < stop); round++){
+			Op op = benchmark.fixture.prepare(params, ops);
+
+			long before = allocated();
+			long start = System.nanoTime();
+			for(int i = 0; i < ops; i++){
+				op.run(i);
+			}
+			long end = System.nanoTime();
+			long after = allocated();
+
+			timed += end-start;
+			bytes += before < 0 ? 0 : after-before;
+			done += ops;
+			best = Math.min(best, (double) (end-start) / ops);
+		}
+
+		boolean counted = allocated() >= 0;
+		return new double[] {(double) timed / done, best, counted ? (double) bytes / done : -1, counted ? bytes * 1e3 / timed : -1};
+	}
+
+	private void run(Pattern filter) throws Exception {
+		//Runs every benchmark whose name matches, printing a line per combination
+		//@param filter e.g. "entry\\..*"
+
+		System.out.println(String.format(Locale.ROOT, "%-18s %-32s %14s %14s %12s %12s", "Benchmark", "Params", "ns/op", "best ns/op", "B/op", "alloc MB/s"));
+		for(Benchmark next: benchmarks){
+			if(!filter.matcher(next.name).find()){
+				continue;
+			}
+
+			for(Params params: next.combinations()){
+				double[] result = measure(next, params);
+				System.out.println(String.format(Locale.ROOT, "%-18s %-32s %14.1f %14.1f %12s %12s", next.name, params, result[0], result[1],
+					result[2] < 0 ? "?" : String.format(Locale.ROOT, "%.1f", result[2]),
+					result[3] < 0 ? "?" : String.format(Locale.ROOT, "%.1f", result[3])));
+			}
+		}
+		System.err.println("(sink " + sink + ")");
+	}
+
+	public static void main(String[] args) throws Exception {
+		//Options: a regex picks the benchmarks to run, --quick shortens warmup and measurement for a rough look
+		Bench bench = new Bench();
+		String filter = "";
+
+		for(String next: args){
+			if(next.equals("--quick")){
+				bench.warmup = WARMUP_NANOS/5;
+				bench.measure = MEASURE_NANOS/5;
+			} else {
+				filter = next;
+			}
+		}
+
+		EntryBench.register(bench);
+		SetBench.register(bench);
+		SnapshotBench.register(bench);
+		ArchiveBench.register(bench);
+		DispatchBench.register(bench);
+
+		bench.run(Pattern.compile(filter));
+	}
+}
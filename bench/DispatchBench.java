@@ -0,0 +1,45 @@
+/**
+ * DispatchBench times lines end to end: tokenizing and matching a line
+ * against the registered usages, and then running it through a Session
+ * with locking, expiry checks and the response. The output is thrown away,
+ * so this is the cost of a command apart from I/O.
+ */
+
+public class DispatchBench {
+	private static final String[][] LINES = {
+		{"get", "GET k1"},
+		{"set", "SET k2 1 2 3 4 5"},
+		{"pick", "PICK k3 5"},
+		{"diff", "DIFF k1 k2 k3"},
+		{"listkeys", "LIST KEYS"},
+		{"invalid", "PICK k1 x"},
+	};
+
+	public static void register(Bench bench) {
+		//Declares the dispatch benchmarks
+		//@param bench the harness
+
+		bench.add("dispatch.parse", params -> 10000, (params, ops) -> {
+			CommandRegistry commands = CrunchDB.getCommands();
+			String line = line(params);
+			return i -> Bench.consume(commands.parse(line));
+		}, "line=get,set,pick,diff,listkeys,invalid");
+
+		bench.add("dispatch.execute", params -> 10000, (params, ops) -> {
+			Session session = SnapshotBench.session(100);
+			String line = line(params);
+			return i -> session.execute(line);
+		}, "line=get,set,pick,diff,listkeys,invalid");
+	}
+
+	private static String line(Bench.Params params) {
+		//Finds the line a run is for
+		//@return the line
+
+		for(String[] next: LINES){
+			if(next[0].equals(params.get("line"))) return next[1];
+		}
+
+		throw new IllegalArgumentException(params.get("line"));
+	}
+}
@@ -0,0 +1,126 @@
+import java.util.List;
+import java.util.Random;
+
+/**
+ * EntryBench times the single-entry operations on entries of different
+ * sizes: PUSH, POP, PLUCK, SORT, UNIQ and the MIN/MAX/SUM aggregates.
+ * Operations that use up their entry (POP, PLUCK, SORT, UNIQ) get enough
+ * fresh entries for a whole round, so each is timed on the state a user
+ * would see rather than on an entry a previous operation emptied or sorted.
+ */
+
+public class EntryBench {
+	private static final String SIZES = "size=10,1000,100000";
+	private static final int CHEAP_OPS = 10000; //Operations per round for ones that don't depend on size
+	private static final int ROUND_VALUES = 1000000; //Values made per round for ones that use up an entry each
+
+	public static void register(Bench bench) {
+		//Declares the entry benchmarks
+		//@param bench the harness
+
+		bench.add("entry.push", params -> CHEAP_OPS, (params, ops) -> {
+			Entry entry = entry(params.getInt("size"), 0);
+			List<Integer> one = List.of(7);
+			return i -> entry.push(one);
+		}, SIZES);
+
+		bench.add("entry.pop", params -> CHEAP_OPS, (params, ops) -> {
+			int size = params.getInt("size");
+			Entry[] entries = entries(size, ops);
+			return i -> Bench.consume(entries[i / size].pop());
+		}, SIZES);
+
+		//From the middle, which moves the most values
+		bench.add("entry.pluck", params -> Math.min(CHEAP_OPS, ROUND_VALUES / params.getInt("size")), (params, ops) -> {
+			int size = params.getInt("size");
+			Entry[] entries = entries(size, ops);
+			return i -> {
+				Entry next = entries[i / size];
+				Bench.consume(next.pluck(next.len()/2 + 1));
+			};
+		}, SIZES);
+
+		bench.add("entry.sort", params -> Math.max(1, ROUND_VALUES / params.getInt("size")), (params, ops) -> {
+			Entry[] entries = entries(params.getInt("size"), ops * params.getInt("size"));
+			return i -> entries[i].sort();
+		}, SIZES);
+
+		//Values from a small range, so there are runs to remove
+		bench.add("entry.uniq", params -> Math.max(1, ROUND_VALUES / params.getInt("size")), (params, ops) -> {
+			int size = params.getInt("size");
+			Entry[] entries = new Entry[ops];
+			for(int i = 0; i < ops; i++){
+				entries[i] = entry(size, i, 4);
+			}
+			return i -> entries[i].uniq();
+		}, SIZES);
+
+		bench.add("entry.min", params -> CHEAP_OPS, (params, ops) -> {
+			Entry entry = entry(params.getInt("size"), 0);
+			return i -> Bench.consume(entry.min());
+		}, SIZES);
+
+		bench.add("entry.max", params -> CHEAP_OPS, (params, ops) -> {
+			Entry entry = entry(params.getInt("size"), 0);
+			return i -> Bench.consume(entry.max());
+		}, SIZES);
+
+		bench.add("entry.sum", params -> CHEAP_OPS, (params, ops) -> {
+			Entry entry = entry(params.getInt("size"), 0);
+			return i -> Bench.consume(entry.sum());
+		}, SIZES);
+
+		//Taking away the smallest value means MIN has to look again
+		bench.add("entry.popmin", params -> Math.min(CHEAP_OPS, ROUND_VALUES / params.getInt("size")), (params, ops) -> {
+			int size = params.getInt("size");
+			Entry[] entries = entries(size, ops);
+			for(Entry next: entries){
+				next.sort();
+			}
+			return i -> {
+				Entry next = entries[i / size];
+				next.pop();
+				Bench.consume(next.min());
+			};
+		}, SIZES);
+	}
+
+	private static Entry[] entries(int size, int values) {
+		//Makes enough entries of random values to take some number of values out of
+		//@param size values in each entry
+		//@param values how many values are needed in all
+		//@return the entries
+
+		Entry[] entries = new Entry[(values + size - 1) / size];
+		for(int i = 0; i < entries.length; i++){
+			entries[i] = entry(size, i);
+		}
+
+		return entries;
+	}
+
+	private static Entry entry(int size, int seed) {
+		//Makes an entry of random values
+		//@param size how many values
+		//@param seed picks the values
+		//@return the entry
+
+		return entry(size, seed, size);
+	}
+
+	private static Entry entry(int size, int seed, int range) {
+		//Makes an entry of random values from 0 up to a limit
+		//@param size how many values
+		//@param seed picks the values
+		//@param range the limit
+		//@return the entry
+
+		Random random = new Random(seed);
+		IntList values = new IntList(size);
+		for(int i = 0; i < size; i++){
+			values.add(random.nextInt(range));
+		}
+
+		return new Entry("k" + seed, values);
+	}
+}
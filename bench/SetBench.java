@@ -0,0 +1,86 @@
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * SetBench times DIFF, INTER and UNION across the number of keys and how
+ * much their values overlap, and CARTPROD across the number of keys.
+ * Each entry holds SET_SIZE distinct values in random order. overlap is the
+ * percentage of them drawn from a pool every entry shares; the rest belong
+ * to that entry alone, so 0 gives disjoint sets and 100 identical ones.
+ */
+
+public class SetBench {
+	private static final int SET_SIZE = 1000;
+	private static final int SET_OPS = 100;
+	private static final int PRODUCT_SIZE = 10; //Values per entry for CARTPROD - NB the output has PRODUCT_SIZE^keys tuples
+
+	public static void register(Bench bench) {
+		//Declares the set benchmarks
+		//@param bench the harness
+
+		bench.add("set.diff", params -> SET_OPS, (params, ops) -> {
+			List<Entry> entries = entries(params.getInt("keys"), SET_SIZE, params.getInt("overlap"));
+			return i -> Bench.consume(Entry.diff(entries).length);
+		}, "keys=2,4,8", "overlap=0,50,100");
+
+		bench.add("set.inter", params -> SET_OPS, (params, ops) -> {
+			List<Entry> entries = entries(params.getInt("keys"), SET_SIZE, params.getInt("overlap"));
+			return i -> Bench.consume(Entry.inter(entries).length);
+		}, "keys=2,4,8", "overlap=0,50,100");
+
+		bench.add("set.union", params -> SET_OPS, (params, ops) -> {
+			List<Entry> entries = entries(params.getInt("keys"), SET_SIZE, params.getInt("overlap"));
+			return i -> Bench.consume(Entry.union(entries).length);
+		}, "keys=2,4,8", "overlap=0,50,100");
+
+		//One operation generates every tuple
+		bench.add("set.cartprod", params -> 10, (params, ops) -> {
+			List<Entry> entries = entries(params.getInt("keys"), PRODUCT_SIZE, params.getInt("overlap"));
+			return i -> {
+				Iterator<int[]> tuples = Entry.cartprod(entries);
+				long count = 0;
+				while(tuples.hasNext()){
+					count += tuples.next()[0];
+				}
+				Bench.consume(count);
+			};
+		}, "keys=2,3,4", "overlap=0,100");
+	}
+
+	private static List<Entry> entries(int keys, int size, int overlap) {
+		//Makes entries whose values partly come from a shared pool
+		//@param keys how many entries
+		//@param size values in each
+		//@param overlap percentage of each entry's values that come from the shared pool
+		//@return the entries
+
+		Random random = new Random(keys*1000 + overlap);
+		int shared = size * overlap / 100;
+		List<Entry> entries = new ArrayList<Entry>(keys);
+
+		for(int k = 0; k < keys; k++){
+			IntList values = new IntList(size);
+			for(int i = 0; i < shared; i++){
+				values.add(i);
+			}
+			//Above the pool and in a range of its own
+			int own = size * (k+1);
+			for(int i = shared; i < size; i++){
+				values.add(own + i);
+			}
+
+			//Shuffled, as typed values would be
+			for(int i = size-1; i > 0; i--){
+				int j = random.nextInt(i+1);
+				int swap = values.get(i);
+				values.set(i, values.get(j));
+				values.set(j, swap);
+			}
+			entries.add(new Entry("k" + k, values));
+		}
+
+		return entries;
+	}
+}
@@ -0,0 +1,64 @@
+import java.io.Writer;
+
+/**
+ * SnapshotBench times SNAPSHOT, CHECKOUT and ROLLBACK on databases of
+ * different sizes, run as lines through a Session like a client's.
+ * Taking a snapshot or adopting one is O(1); the cost is paid by the first
+ * change afterwards, which copies the entries map. So each operation is
+ * the command followed by a SET, which is what a user sees.
+ */
+
+public class SnapshotBench {
+	public static void register(Bench bench) {
+		//Declares the snapshot benchmarks
+		//@param bench the harness
+
+		//The snapshot is dropped again so memory doesn't grow with the round
+		bench.add("db.snapshot", SnapshotBench::roundSize, (params, ops) -> {
+			Session session = session(params.getInt("keys"));
+			return i -> {
+				session.execute("SNAPSHOT");
+				session.execute("SET k0 " + i);
+				session.execute("DROP " + (i+1));
+			};
+		}, "keys=1000,100000");
+
+		bench.add("db.checkout", SnapshotBench::roundSize, (params, ops) -> {
+			Session session = session(params.getInt("keys"));
+			session.execute("SNAPSHOT");
+			return i -> {
+				session.execute("CHECKOUT 1");
+				session.execute("SET k0 " + i);
+			};
+		}, "keys=1000,100000");
+
+		bench.add("db.rollback", SnapshotBench::roundSize, (params, ops) -> {
+			Session session = session(params.getInt("keys"));
+			session.execute("SNAPSHOT");
+			return i -> {
+				session.execute("ROLLBACK 1");
+				session.execute("SET k0 " + i);
+			};
+		}, "keys=1000,100000");
+	}
+
+	private static int roundSize(Bench.Params params) {
+		//Fewer operations for big databases, where each copies a large map
+		//@return operations per round
+
+		return params.getInt("keys") <= 1000 ? 1000 : 20;
+	}
+
+	static Session session(int keys) {
+		//Makes a database with some keys of ten values each and a session on it whose output is thrown away
+		//@param keys how many keys
+		//@return the session
+
+		Session session = new Session(new CrunchDB(), CrunchDB.getCommands(), new ResponseWriter(Writer.nullWriter(), false));
+		for(int i = 0; i < keys; i++){
+			session.execute("SET k" + i + " 1 2 3 4 5 6 7 8 9 " + i);
+		}
+
+		return session;
+	}
+}